@@ -0,0 +1,188 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+/**
+ * Throughput of append() on both appenders with 1 to 64 producer threads, against a
+ * DataSource that does nothing so the appender is the bottleneck.
+ *
+ * Every invocation appends a new event built the way a Logger builds it, so caller data
+ * is captured from a real stack walk, and cycles through varied messages, loggers and
+ * levels so the message key cache misses.  One event in EVENTS_PER_LATE_EVENT is a day
+ * old so the DayCache rolls over.  Events dropped because the queue is full are not
+ * warned about but counted and printed at the end of the trial, a trial that dropped
+ * many measured the drop path rather than the append path.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppendBenchmark
+{
+   @State(Scope.Benchmark)
+   public static class BatchAppender
+   {
+      LogbackBatchDbAppender appender;
+
+      @Setup(Level.Trial)
+      public void setup()
+      {
+         appender = new LogbackBatchDbAppender();
+         appender.setName("benchmark");
+         appender.setDataSource(NoopJdbc.dataSource());
+         appender.setTableName("ServerMessage");
+         appender.setService("benchmark");
+         appender.setMaxQueue(100000);
+         appender.setJmxEnabled(false);
+         appender.start();
+      }
+
+      @TearDown(Level.Trial)
+      public void tearDown()
+      {
+         System.out.println("dropped " + appender.getMetrics().getDropped() + " of " + appender.getMetrics().getAppended() + " events");
+         appender.stop();
+      }
+   }
+
+   @State(Scope.Benchmark)
+   public static class SyncAppender
+   {
+      LogbackDbAppender appender;
+
+      @Setup(Level.Trial)
+      public void setup()
+      {
+         appender = new LogbackDbAppender();
+         appender.setName("benchmark");
+         appender.setDataSource(NoopJdbc.dataSource());
+         appender.setTableName("ServerMessage");
+         appender.setService("benchmark");
+         appender.setJmxEnabled(false);
+         appender.start();
+      }
+
+      @TearDown(Level.Trial)
+      public void tearDown()
+      {
+         appender.stop();
+      }
+   }
+
+   static final int           MESSAGES              = 4096;
+   static final int           EVENTS_PER_LATE_EVENT = 1000;
+   static final long          DAY                   = TimeUnit.DAYS.toMillis(1);
+   static final LoggerContext CONTEXT               = new LoggerContext();
+
+   static
+   {
+      //the appenders warn for every dropped event, the benchmark counts them instead
+      ((Logger) LoggerFactory.getLogger(LogbackBatchDbAppender.class.getName())).setLevel(ch.qos.logback.classic.Level.ERROR);
+   }
+
+   @State(Scope.Thread)
+   public static class Events
+   {
+      final String[] messages = new String[MESSAGES];
+      final Logger[] loggers  = new Logger[16];
+      int            next     = 0;
+
+      @Setup(Level.Trial)
+      public void setup()
+      {
+         for (int i = 0; i < messages.length; i++)
+         {
+            messages[i] = "Order " + (1000 + i * 7) + " could not be priced: missing tax table " + (i % 64) + " for store " + (i % 13);
+         }
+         for (int i = 0; i < loggers.length; i++)
+         {
+            loggers[i] = CONTEXT.getLogger("com.liftck.benchmark.Service" + i);
+         }
+      }
+
+      LoggingEvent next()
+      {
+         int n = next++;
+         ch.qos.logback.classic.Level level = n % 10 == 0 ? ch.qos.logback.classic.Level.WARN : ch.qos.logback.classic.Level.INFO;
+         LoggingEvent event = new LoggingEvent(AppendBenchmark.class.getName(), loggers[n & (loggers.length - 1)], level, messages[n & (MESSAGES - 1)], null, null);
+         if (n % EVENTS_PER_LATE_EVENT == 0)
+         {
+            event.setTimeStamp(event.getTimeStamp() - DAY);
+         }
+         return event;
+      }
+   }
+
+   @Benchmark
+   @Threads(1)
+   public void batchAppend1(BatchAppender appender, Events events)
+   {
+      appender.appender.doAppend(events.next());
+   }
+
+   @Benchmark
+   @Threads(4)
+   public void batchAppend4(BatchAppender appender, Events events)
+   {
+      appender.appender.doAppend(events.next());
+   }
+
+   @Benchmark
+   @Threads(16)
+   public void batchAppend16(BatchAppender appender, Events events)
+   {
+      appender.appender.doAppend(events.next());
+   }
+
+   @Benchmark
+   @Threads(64)
+   public void batchAppend64(BatchAppender appender, Events events)
+   {
+      appender.appender.doAppend(events.next());
+   }
+
+   @Benchmark
+   @Threads(1)
+   public void syncAppend1(SyncAppender appender, Events events)
+   {
+      appender.appender.doAppend(events.next());
+   }
+
+   @Benchmark
+   @Threads(16)
+   public void syncAppend16(SyncAppender appender, Events events)
+   {
+      appender.appender.doAppend(events.next());
+   }
+
+   @Benchmark
+   @Threads(64)
+   public void syncAppend64(SyncAppender appender, Events events)
+   {
+      appender.appender.doAppend(events.next());
+   }
+}
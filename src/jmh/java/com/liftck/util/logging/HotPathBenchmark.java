@@ -0,0 +1,114 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+
+/**
+ * The per event steps of LogbackBatchDbAppender in isolation: binding a row, deriving
+ * the messageKey, formatting a stack trace and taking a messageNum.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HotPathBenchmark
+{
+   static final String     MESSAGE = "Order 1234 could not be priced: missing tax table for region=US-TX";
+
+   LogbackBatchDbAppender  appender;
+   PreparedStatement       statement;
+   DbLogRow                row;
+   IThrowableProxy         throwableProxy;
+   StackTraceFormatter     uncachedFormatter;
+   StackTraceFormatter     cachedFormatter;
+
+   @Setup(Level.Trial)
+   public void setup()
+   {
+      appender = new LogbackBatchDbAppender();
+      appender.setDataSource(NoopJdbc.dataSource());
+      appender.setTableName("ServerMessage");
+      appender.setService("benchmark");
+      appender.setJmxEnabled(false);
+      appender.start();
+
+      statement = NoopJdbc.preparedStatement();
+      row = new DbLogRow(System.currentTimeMillis(), 30000, "WARN", "com.liftck.benchmark.OrderService", "com.liftck.benchmark.OrderService", "price", 42, MESSAGE, "");
+      throwableProxy = new ThrowableProxy(new IllegalStateException("tax table missing", new RuntimeException("region US-TX")));
+      uncachedFormatter = new StackTraceFormatter(LogbackBatchDbAppender.MAX_STACK_LENGTH);
+      cachedFormatter = new StackTraceFormatter(LogbackBatchDbAppender.MAX_STACK_LENGTH, 1024);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown()
+   {
+      appender.stop();
+   }
+
+   @Benchmark
+   public int populateStatement() throws SQLException
+   {
+      return appender.populateStatement(row, statement, 1);
+   }
+
+   @Benchmark
+   public String getMessageKey()
+   {
+      return appender.getMessageKey(MESSAGE);
+   }
+
+   @Benchmark
+   public String extractMessageKey()
+   {
+      return MessageKeys.extract(MESSAGE, LogbackBatchDbAppender.MAX_MSGKEY_LENGTH);
+   }
+
+   @Benchmark
+   public String buildStackTrace()
+   {
+      return uncachedFormatter.format(throwableProxy);
+   }
+
+   @Benchmark
+   public String cachedStackTrace()
+   {
+      return cachedFormatter.format(throwableProxy);
+   }
+
+   @Benchmark
+   @Threads(1)
+   public int nextMessageNum1()
+   {
+      return appender.nextMessageNum();
+   }
+
+   @Benchmark
+   @Threads(16)
+   public int nextMessageNum16()
+   {
+      return appender.nextMessageNum();
+   }
+}
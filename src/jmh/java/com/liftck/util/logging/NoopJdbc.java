@@ -0,0 +1,86 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+/**
+ * A DataSource whose connections and statements do nothing, so benchmarks measure the
+ * appenders and not a database.
+ */
+class NoopJdbc implements InvocationHandler
+{
+   static DataSource dataSource()
+   {
+      return proxy(DataSource.class);
+   }
+
+   static PreparedStatement preparedStatement()
+   {
+      return proxy(PreparedStatement.class);
+   }
+
+   @SuppressWarnings("unchecked")
+   static <T> T proxy(Class<T> type)
+   {
+      return (T) Proxy.newProxyInstance(NoopJdbc.class.getClassLoader(), new Class<?>[] { type }, new NoopJdbc());
+   }
+
+   @Override
+   public Object invoke(Object proxy, Method method, Object[] args)
+   {
+      Class<?> type = method.getReturnType();
+      String name = method.getName();
+
+      if (type == Connection.class)
+      {
+         return proxy(Connection.class);
+      }
+      if (type == PreparedStatement.class)
+      {
+         return proxy(PreparedStatement.class);
+      }
+      if (type == Statement.class)
+      {
+         return proxy(Statement.class);
+      }
+      if (name.equals("executeBatch"))
+      {
+         return new int[0];
+      }
+      if (name.equals("isValid"))
+      {
+         return true;
+      }
+      if (name.equals("hashCode"))
+      {
+         return System.identityHashCode(proxy);
+      }
+      if (name.equals("equals"))
+      {
+         return proxy == args[0];
+      }
+
+      if (type == boolean.class)
+      {
+         return false;
+      }
+      if (type == int.class)
+      {
+         return 0;
+      }
+      if (type == long.class)
+      {
+         return 0L;
+      }
+      return null;
+   }
+}
@@ -0,0 +1,144 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+/**
+ * Wraps a DataSource to inject the faults a real database shows: added latency on every
+ * statement execution and commit, commits that fail with a connection error and periods
+ * in which no connections can be made.
+ *
+ * The injected failures use SQLState 08 (connection exception) so the appenders treat
+ * them as transient and not as bad data.
+ */
+class FaultInjectingDataSource implements InvocationHandler
+{
+   final DataSource  target;
+
+   volatile long     latencyMs            = 0;     // added to every execute and commit
+   volatile double   commitFailureRate    = 0;     // fraction of commits that fail
+   volatile boolean  refuseConnections    = false; // getConnection() fails while set
+
+   final AtomicLong  injectedCommitFailures = new AtomicLong(0);
+   final AtomicLong  refusedConnections     = new AtomicLong(0);
+
+   FaultInjectingDataSource(DataSource target)
+   {
+      this.target = target;
+   }
+
+   DataSource dataSource()
+   {
+      return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DataSource.class }, this);
+   }
+
+   @Override
+   public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+   {
+      if (method.getName().equals("getConnection"))
+      {
+         if (refuseConnections)
+         {
+            refusedConnections.incrementAndGet();
+            throw new SQLException("Injected fault: connection refused", "08001");
+         }
+         Connection connection = (Connection) call(target, method, args);
+         return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, new ConnectionHandler(connection));
+      }
+      return call(target, method, args);
+   }
+
+   static Object call(Object target, Method method, Object[] args) throws Throwable
+   {
+      try
+      {
+         return method.invoke(target, args);
+      }
+      catch (InvocationTargetException ex)
+      {
+         throw ex.getCause();
+      }
+   }
+
+   void delay()
+   {
+      long latency = latencyMs;
+      if (latency > 0)
+      {
+         try
+         {
+            Thread.sleep(latency);
+         }
+         catch (InterruptedException ex)
+         {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   class ConnectionHandler implements InvocationHandler
+   {
+      final Connection connection;
+
+      ConnectionHandler(Connection connection)
+      {
+         this.connection = connection;
+      }
+
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+      {
+         String name = method.getName();
+         if (name.equals("commit"))
+         {
+            delay();
+            if (commitFailureRate > 0 && ThreadLocalRandom.current().nextDouble() < commitFailureRate)
+            {
+               injectedCommitFailures.incrementAndGet();
+               connection.rollback();
+               throw new SQLException("Injected fault: commit failed", "08S01");
+            }
+         }
+
+         Object result = call(connection, method, args);
+         if (result instanceof Statement)
+         {
+            Class<?> type = method.getReturnType();
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type }, new StatementHandler(result));
+         }
+         return result;
+      }
+   }
+
+   class StatementHandler implements InvocationHandler
+   {
+      final Object statement;
+
+      StatementHandler(Object statement)
+      {
+         this.statement = statement;
+      }
+
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+      {
+         if (method.getName().startsWith("execute"))
+         {
+            delay();
+         }
+         return call(statement, method, args);
+      }
+   }
+}
@@ -0,0 +1,323 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+
+/**
+ * Drives multi-threaded load through LogbackBatchDbAppender or LogbackDbAppender into an
+ * in-memory H2 database in MySQL mode, optionally through a FaultInjectingDataSource,
+ * and reports throughput, caller latency, commit lag and exactly how many events were
+ * persisted and lost.
+ *
+ * Every event carries a unique message so persisted events can be counted exactly and
+ * duplicates detected.  Options are key=value arguments, for example
+ *
+ *    gradle loadTest -PloadTestArgs="appender=batch threads=32 events=20000 latencyMs=2 commitFailureRate=0.01 outageAtMs=1000 outageMs=3000"
+ *
+ *    appender          batch or sync (default batch)
+ *    threads           producer threads (16)
+ *    events            events per producer thread (10000)
+ *    latencyMs         latency added to every execute and commit (0)
+ *    commitFailureRate fraction of commits that fail (0)
+ *    outageAtMs        when connections start being refused, -1 for never (-1)
+ *    outageMs          how long connections are refused (0)
+ *    drainMs           how long to wait for the appender to catch up after the load (30000)
+ *
+ * Any other key is set as a property of the appender, e.g. writerThreads=4,
+ * maxLingerMs=50, overflowPolicy=block, spillDirectory=/tmp/spill or groupCommit=true.
+ */
+public class LoadTest
+{
+   static final String TABLE = "ServerMessage";
+
+   final Map<String, String>      options;
+   final FaultInjectingDataSource faults;
+   final DataSource               database;
+   final LatencyHistogram         callerLatency = new LatencyHistogram();
+
+   LoadTest(Map<String, String> options) throws SQLException
+   {
+      this.options = options;
+
+      JdbcDataSource h2 = new JdbcDataSource();
+      h2.setURL("jdbc:h2:mem:loadtest;MODE=MySQL;DB_CLOSE_DELAY=-1");
+      this.database = h2;
+      this.faults = new FaultInjectingDataSource(h2);
+
+      createTable();
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      Map<String, String> options = new HashMap<String, String>();
+      for (String arg : args)
+      {
+         for (String pair : arg.trim().split("\\s+"))
+         {
+            int equals = pair.indexOf('=');
+            if (equals > 0)
+            {
+               options.put(pair.substring(0, equals), pair.substring(equals + 1));
+            }
+         }
+      }
+
+      //the appenders warn for every dropped event, the report counts them instead
+      ((Logger) LoggerFactory.getLogger(LogbackBatchDbAppender.class.getName())).setLevel(Level.ERROR);
+
+      new LoadTest(options).run();
+      System.exit(0);
+   }
+
+   String option(String name, String defaultValue)
+   {
+      String value = options.remove(name);
+      return value != null ? value : defaultValue;
+   }
+
+   void createTable() throws SQLException
+   {
+      Connection connection = database.getConnection();
+      try
+      {
+         Statement statement = connection.createStatement();
+         statement.execute("DROP TABLE IF EXISTS " + TABLE);
+         statement.execute("CREATE TABLE " + TABLE + " (" //
+               + "`id` BIGINT AUTO_INCREMENT PRIMARY KEY, `dayId` INT, `dayKey` INT, `service` VARCHAR(64), `level` INT, `levelName` VARCHAR(16), " //
+               + "`category` VARCHAR(255), `className` VARCHAR(255), `method` VARCHAR(255), `lineNumber` INT, `messageKey` VARCHAR(100), " //
+               + "`message` VARCHAR(255), `error` VARCHAR(10000), `buildVersion` VARCHAR(64), `machine` VARCHAR(255), `machineIp` VARCHAR(64), " //
+               + "`messageNum` INT, `timestamp` TIMESTAMP(3), `lastModified` BIGINT, `occurrences` INT NOT NULL DEFAULT 1, `firstTimestamp` TIMESTAMP(3) NULL)");
+         statement.close();
+      }
+      finally
+      {
+         connection.close();
+      }
+   }
+
+   /**
+    * @return the number of distinct events in the table and the number of duplicate rows
+    */
+   long[] countPersisted() throws SQLException
+   {
+      Connection connection = database.getConnection();
+      try
+      {
+         Statement statement = connection.createStatement();
+         ResultSet rs = statement.executeQuery("SELECT COUNT(DISTINCT `message`), COUNT(*) FROM " + TABLE + " WHERE `error` IS NULL OR `error` NOT LIKE 'Rate limited:%'");
+         rs.next();
+         long distinct = rs.getLong(1);
+         long rows = rs.getLong(2);
+         statement.close();
+         return new long[] { distinct, rows - distinct };
+      }
+      finally
+      {
+         connection.close();
+      }
+   }
+
+   UnsynchronizedAppenderBase<ILoggingEvent> createAppender() throws Exception
+   {
+      String type = option("appender", "batch");
+      UnsynchronizedAppenderBase<ILoggingEvent> appender = "sync".equals(type) ? new LogbackDbAppender() : new LogbackBatchDbAppender();
+      appender.setName("loadtest");
+
+      setProperty(appender, "dataSource", faults.dataSource());
+      setProperty(appender, "tableName", TABLE);
+      setProperty(appender, "service", "loadtest");
+      setProperty(appender, "maxMessagesPerDay", Integer.MAX_VALUE);
+      setProperty(appender, "jmxEnabled", false);
+
+      for (Map.Entry<String, String> option : options.entrySet())
+      {
+         setProperty(appender, option.getKey(), option.getValue());
+      }
+
+      appender.start();
+      return appender;
+   }
+
+   /**
+    * Sets a property through its setter the way logback's configurator would.
+    */
+   static void setProperty(Object target, String name, Object value) throws Exception
+   {
+      String setter = "set" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+      for (Method method : target.getClass().getMethods())
+      {
+         if (method.getName().equals(setter) && method.getParameterTypes().length == 1)
+         {
+            Class<?> type = method.getParameterTypes()[0];
+            Object converted = value;
+            if (value instanceof String)
+            {
+               String s = (String) value;
+               if (type == int.class)
+               {
+                  converted = Integer.valueOf(s);
+               }
+               else if (type == long.class)
+               {
+                  converted = Long.valueOf(s);
+               }
+               else if (type == boolean.class)
+               {
+                  converted = Boolean.valueOf(s);
+               }
+            }
+            method.invoke(target, converted);
+            return;
+         }
+      }
+      throw new IllegalArgumentException("Unknown option " + name);
+   }
+
+   void run() throws Exception
+   {
+      final int threads = Integer.parseInt(option("threads", "16"));
+      final int events = Integer.parseInt(option("events", "10000"));
+      final long outageAtMs = Long.parseLong(option("outageAtMs", "-1"));
+      final long outageMs = Long.parseLong(option("outageMs", "0"));
+      long drainMs = Long.parseLong(option("drainMs", "30000"));
+      faults.latencyMs = Long.parseLong(option("latencyMs", "0"));
+      faults.commitFailureRate = Double.parseDouble(option("commitFailureRate", "0"));
+
+      final UnsynchronizedAppenderBase<ILoggingEvent> appender = createAppender();
+      AppenderMetrics metrics = appender instanceof LogbackBatchDbAppender ? ((LogbackBatchDbAppender) appender).getMetrics() : ((LogbackDbAppender) appender).getMetrics();
+
+      if (outageAtMs >= 0)
+      {
+         Thread outage = new Thread("loadtest-outage")
+            {
+               @Override
+               public void run()
+               {
+                  try
+                  {
+                     Thread.sleep(outageAtMs);
+                     faults.refuseConnections = true;
+                     Thread.sleep(outageMs);
+                  }
+                  catch (InterruptedException ex)
+                  {
+
+                  }
+                  faults.refuseConnections = false;
+               }
+            };
+         outage.setDaemon(true);
+         outage.start();
+      }
+
+      final CountDownLatch start = new CountDownLatch(1);
+      final AtomicLong produced = new AtomicLong(0);
+      Thread[] producers = new Thread[threads];
+      for (int p = 0; p < threads; p++)
+      {
+         final int producer = p;
+         producers[p] = new Thread("loadtest-producer-" + p)
+            {
+               @Override
+               public void run()
+               {
+                  try
+                  {
+                     start.await();
+                  }
+                  catch (InterruptedException ex)
+                  {
+                     return;
+                  }
+
+                  for (int n = 0; n < events; n++)
+                  {
+                     LoggingEvent event = new LoggingEvent();
+                     event.setThreadName(getName());
+                     event.setLoggerName("com.liftck.loadtest.Producer" + (producer % 8));
+                     event.setLevel(n % 10 == 0 ? Level.WARN : Level.INFO);
+                     event.setMessage("Load test event p=" + producer + " n=" + n);
+                     event.setTimeStamp(System.currentTimeMillis());
+                     event.setCallerData(new StackTraceElement[] { new StackTraceElement("com.liftck.loadtest.Producer", "run", "Producer.java", 1) });
+
+                     long begin = System.nanoTime();
+                     appender.doAppend(event);
+                     callerLatency.record(System.nanoTime() - begin);
+                     produced.incrementAndGet();
+                  }
+               }
+            };
+         producers[p].start();
+      }
+
+      long began = System.nanoTime();
+      start.countDown();
+      for (Thread producer : producers)
+      {
+         producer.join();
+      }
+      long elapsedNanos = System.nanoTime() - began;
+
+      //wait for the appender to catch up, until the table stops growing
+      long drainUntil = System.currentTimeMillis() + drainMs;
+      long last = -1;
+      long stableSince = System.currentTimeMillis();
+      while (System.currentTimeMillis() < drainUntil)
+      {
+         long persisted = countPersisted()[0];
+         if (persisted != last || metrics.getQueueDepth() > 0)
+         {
+            last = persisted;
+            stableSince = System.currentTimeMillis();
+         }
+         else if (persisted == produced.get() || System.currentTimeMillis() - stableSince > 2000)
+         {
+            break;
+         }
+         Thread.sleep(100);
+      }
+      appender.stop();
+
+      long[] counts = countPersisted();
+      long total = produced.get();
+      long persisted = counts[0];
+
+      System.out.println("events produced      " + total);
+      System.out.println("events persisted     " + persisted);
+      System.out.println("events lost          " + (total - persisted));
+      System.out.println("duplicate rows       " + counts[1]);
+      System.out.println("throughput           " + (long) (total / (elapsedNanos / 1e9)) + " events/sec");
+      System.out.println("caller latency       p50 " + micros(callerLatency.percentile(50)) + "us  p99 " + micros(callerLatency.percentile(99)) + "us  max " + micros(callerLatency.max()) + "us");
+      System.out.println("commit lag           p50 " + metrics.getCommitLagP50Millis() + "ms  p99 " + metrics.getCommitLagP99Millis() + "ms");
+      System.out.println("appender dropped     " + metrics.getDropped() + "  failed " + metrics.getFailed() + "  spilled " + metrics.getSpilled() + "  rate limited " + metrics.getRateLimited());
+      System.out.println("injected faults      commit failures " + faults.injectedCommitFailures.get() + "  refused connections " + faults.refusedConnections.get());
+      System.out.println("metrics              " + metrics.snapshot());
+   }
+
+   static long micros(long nanos)
+   {
+      return TimeUnit.NANOSECONDS.toMicros(nanos);
+   }
+}
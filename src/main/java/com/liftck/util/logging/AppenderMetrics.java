@@ -0,0 +1,308 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of a LogbackDbAppender or LogbackBatchDbAppender.
+ *
+ * Everything is recorded with LongAdders so recording costs a few uncontended adds and
+ * can be left on in production.  The values can be pulled with snapshot() or read over
+ * JMX once the appender has registered the metrics with the platform MBeanServer.
+ */
+public class AppenderMetrics implements AppenderMetricsMBean
+{
+   final LongAdder        appended          = new LongAdder();
+   final LongAdder        inserted          = new LongAdder();
+   final LongAdder        failed            = new LongAdder();
+   final LongAdder        spilled           = new LongAdder();
+   final LongAdder        droppedNewest     = new LongAdder();
+   final LongAdder        droppedOldest     = new LongAdder();
+   final LongAdder        droppedLowerLevel = new LongAdder();
+   final LongAdder        blockTimeouts     = new LongAdder();
+   final LongAdder        retries           = new LongAdder();
+   final LongAdder        poisonRows        = new LongAdder(); // rows a bisected batch threw away, included in failed
+   final LongAdder        breakerTrips      = new LongAdder();
+   final AtomicLong       maxQueueDepth     = new AtomicLong(0);
+
+   final LatencyHistogram batchSize         = new LatencyHistogram(); // events per committed batch
+   final LatencyHistogram executeLatency    = new LatencyHistogram(); // nanos spent executing a batch's statements
+   final LatencyHistogram commitLatency     = new LatencyHistogram(); // nanos spent committing a batch
+   final LatencyHistogram commitLag         = new LatencyHistogram(); // millis from an event's timestamp to its commit
+   final LatencyHistogram appendLatency     = new LatencyHistogram(); // nanos a caller spent in append()
+
+   IntSupplier            queueDepth        = null;
+   LongSupplier           rateLimited       = null;
+   ObjectName             objectName        = null;
+
+   void recordQueueDepth(int depth)
+   {
+      long max = maxQueueDepth.get();
+      while (depth > max && !maxQueueDepth.compareAndSet(max, depth))
+      {
+         max = maxQueueDepth.get();
+      }
+   }
+
+   /**
+    * Records a committed batch of events.
+    */
+   void recordBatch(List<DbLogRow> rows, long executeNanos, long commitNanos)
+   {
+      inserted.add(rows.size());
+      batchSize.record(rows.size());
+      executeLatency.record(executeNanos);
+      commitLatency.record(commitNanos);
+
+      long now = System.currentTimeMillis();
+      for (DbLogRow row : rows)
+      {
+         commitLag.record(now - row.timeStamp);
+      }
+   }
+
+   /**
+    * Registers the metrics with the platform MBeanServer as
+    * com.liftck.util.logging:type=[type],name=[name].  If another appender already holds
+    * that name the metrics are registered as name#2, name#3 ... with a warning instead of
+    * taking its place.  Failures are reported but not thrown, metrics must never stop the
+    * appender from starting.
+    */
+   void register(String type, String name)
+   {
+      try
+      {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName objectName = objectName(type, name);
+         int n = 1;
+         while (server.isRegistered(objectName))
+         {
+            objectName = objectName(type, name + "#" + (++n));
+         }
+         server.registerMBean(this, objectName);
+         this.objectName = objectName;
+
+         if (n > 1)
+         {
+            System.out.println("Warning metrics of another " + type + " named " + name + " are registered with JMX, these are registered as " + objectName);
+         }
+      }
+      catch (Exception ex)
+      {
+         System.out.println("Warning metrics could not be registered with JMX for " + type + " " + name + ": " + ex);
+      }
+   }
+
+   static ObjectName objectName(String type, String name) throws MalformedObjectNameException
+   {
+      return new ObjectName("com.liftck.util.logging:type=" + type + ",name=" + ObjectName.quote(name));
+   }
+
+   void unregister()
+   {
+      if (objectName != null)
+      {
+         try
+         {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+         }
+         catch (Exception ex)
+         {
+
+         }
+         objectName = null;
+      }
+   }
+
+   /**
+    * @return every metric by name, latencies are in micros and lag in millis
+    */
+   public Map<String, Long> snapshot()
+   {
+      Map<String, Long> snapshot = new LinkedHashMap<String, Long>();
+      snapshot.put("appended", getAppended());
+      snapshot.put("inserted", getInserted());
+      snapshot.put("dropped", getDropped());
+      snapshot.put("droppedNewest", droppedNewest.sum());
+      snapshot.put("droppedOldest", droppedOldest.sum());
+      snapshot.put("droppedLowerLevel", droppedLowerLevel.sum());
+      snapshot.put("blockTimeouts", blockTimeouts.sum());
+      snapshot.put("failed", getFailed());
+      snapshot.put("spilled", getSpilled());
+      snapshot.put("retries", getRetries());
+      snapshot.put("poisonRows", getPoisonRows());
+      snapshot.put("circuitBreakerTrips", getCircuitBreakerTrips());
+      snapshot.put("rateLimited", getRateLimited());
+      snapshot.put("queueDepth", (long) getQueueDepth());
+      snapshot.put("maxQueueDepth", getMaxQueueDepth());
+      put(snapshot, "batchSize", batchSize, 1);
+      put(snapshot, "executeLatencyMicros", executeLatency, 1000);
+      put(snapshot, "commitLatencyMicros", commitLatency, 1000);
+      put(snapshot, "commitLagMillis", commitLag, 1);
+      put(snapshot, "appendLatencyMicros", appendLatency, 1000);
+      return snapshot;
+   }
+
+   static void put(Map<String, Long> snapshot, String name, LatencyHistogram histogram, long divisor)
+   {
+      snapshot.put(name + ".count", histogram.count());
+      snapshot.put(name + ".mean", histogram.mean() / divisor);
+      snapshot.put(name + ".p50", histogram.percentile(50) / divisor);
+      snapshot.put(name + ".p99", histogram.percentile(99) / divisor);
+      snapshot.put(name + ".max", histogram.max() / divisor);
+   }
+
+   static long micros(long nanos)
+   {
+      return TimeUnit.NANOSECONDS.toMicros(nanos);
+   }
+
+   @Override
+   public long getAppended()
+   {
+      return appended.sum();
+   }
+
+   @Override
+   public long getInserted()
+   {
+      return inserted.sum();
+   }
+
+   /**
+    * @return every event lost to a full queue, whichever overflow policy chose it
+    */
+   @Override
+   public long getDropped()
+   {
+      return droppedNewest.sum() + droppedOldest.sum() + droppedLowerLevel.sum();
+   }
+
+   @Override
+   public long getFailed()
+   {
+      return failed.sum();
+   }
+
+   @Override
+   public long getSpilled()
+   {
+      return spilled.sum();
+   }
+
+   @Override
+   public long getRetries()
+   {
+      return retries.sum();
+   }
+
+   @Override
+   public long getPoisonRows()
+   {
+      return poisonRows.sum();
+   }
+
+   @Override
+   public long getCircuitBreakerTrips()
+   {
+      return breakerTrips.sum();
+   }
+
+   @Override
+   public long getRateLimited()
+   {
+      return rateLimited == null ? 0 : rateLimited.getAsLong();
+   }
+
+   @Override
+   public int getQueueDepth()
+   {
+      return queueDepth == null ? 0 : queueDepth.getAsInt();
+   }
+
+   @Override
+   public long getMaxQueueDepth()
+   {
+      return maxQueueDepth.get();
+   }
+
+   @Override
+   public long getBatches()
+   {
+      return batchSize.count();
+   }
+
+   @Override
+   public long getMeanBatchSize()
+   {
+      return batchSize.mean();
+   }
+
+   @Override
+   public long getBatchSizeP99()
+   {
+      return batchSize.percentile(99);
+   }
+
+   @Override
+   public long getExecuteLatencyP50Micros()
+   {
+      return micros(executeLatency.percentile(50));
+   }
+
+   @Override
+   public long getExecuteLatencyP99Micros()
+   {
+      return micros(executeLatency.percentile(99));
+   }
+
+   @Override
+   public long getCommitLatencyP50Micros()
+   {
+      return micros(commitLatency.percentile(50));
+   }
+
+   @Override
+   public long getCommitLatencyP99Micros()
+   {
+      return micros(commitLatency.percentile(99));
+   }
+
+   @Override
+   public long getCommitLagP50Millis()
+   {
+      return commitLag.percentile(50);
+   }
+
+   @Override
+   public long getCommitLagP99Millis()
+   {
+      return commitLag.percentile(99);
+   }
+
+   @Override
+   public long getAppendLatencyP50Micros()
+   {
+      return micros(appendLatency.percentile(50));
+   }
+
+   @Override
+   public long getAppendLatencyP99Micros()
+   {
+      return micros(appendLatency.percentile(99));
+   }
+}
@@ -0,0 +1,54 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+/**
+ * The JMX view of an appender's AppenderMetrics.
+ */
+public interface AppenderMetricsMBean
+{
+   long getAppended();
+
+   long getInserted();
+
+   long getDropped();
+
+   long getFailed();
+
+   long getSpilled();
+
+   long getRetries();
+
+   long getPoisonRows();
+
+   long getCircuitBreakerTrips();
+
+   long getRateLimited();
+
+   int getQueueDepth();
+
+   long getMaxQueueDepth();
+
+   long getBatches();
+
+   long getMeanBatchSize();
+
+   long getBatchSizeP99();
+
+   long getExecuteLatencyP50Micros();
+
+   long getExecuteLatencyP99Micros();
+
+   long getCommitLatencyP50Micros();
+
+   long getCommitLatencyP99Micros();
+
+   long getCommitLagP50Millis();
+
+   long getCommitLagP99Millis();
+
+   long getAppendLatencyP50Micros();
+
+   long getAppendLatencyP99Micros();
+}
@@ -0,0 +1,20 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * How a LogbackBatchDbAppender sends a batch of rows to the database.  Implementations
+ * execute the inserts into the given table on the given connection but do not commit,
+ * the caller commits.
+ *
+ * A single instance is shared by all of an appender's writer threads so implementations
+ * must be thread safe.
+ */
+interface BatchWriteStrategy
+{
+   void write(LogbackBatchDbAppender appender, CachedConnection connection, String table, List<DbLogRow> rows) throws SQLException;
+}
@@ -0,0 +1,187 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import ch.qos.logback.core.db.DBHelper;
+
+/**
+ * A long lived, non auto-commit connection together with the PreparedStatements that
+ * have been prepared on it.
+ *
+ * The connection is only validated (Connection.isValid) once it has been idle for
+ * longer than validationIntervalMs, a connection that is in constant use is assumed to
+ * be good until a statement fails.  After a failure the owner calls invalidate() and
+ * the next call to prepare() transparently reconnects.
+ *
+ * At most maxStatements PreparedStatements are kept, the least recently used one is
+ * closed to make room, so statements for tables that are no longer written (yesterday's
+ * day table) do not pile up on a long lived connection.
+ *
+ * Not thread safe, each writer thread owns its own instance.
+ */
+class CachedConnection
+{
+   final DataSource                     dataSource;
+   final long                           validationIntervalMs;
+   final int                            validationTimeoutSeconds;
+   final int                            maxStatements;
+
+   volatile Connection                  connection = null;
+   final Map<String, PreparedStatement> statements;
+   Statement                            statement  = null;
+   long                                 lastUsed   = 0;
+   final Set<String>                    temporaryTables = new HashSet<String>(); // created on the current connection
+
+   CachedConnection(DataSource dataSource, long validationIntervalMs, int validationTimeoutSeconds, int maxStatements)
+   {
+      this.dataSource = dataSource;
+      this.validationIntervalMs = validationIntervalMs;
+      this.validationTimeoutSeconds = validationTimeoutSeconds;
+      this.maxStatements = maxStatements;
+      this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true)
+         {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest)
+            {
+               if (size() > CachedConnection.this.maxStatements)
+               {
+                  DBHelper.closeStatement(eldest.getValue());
+                  return true;
+               }
+               return false;
+            }
+         };
+   }
+
+   /**
+    * @return the open connection, reconnecting first if there is none or it failed validation
+    */
+   Connection get() throws SQLException
+   {
+      long now = System.currentTimeMillis();
+      if (connection != null && now - lastUsed > validationIntervalMs)
+      {
+         boolean valid = false;
+         try
+         {
+            valid = connection.isValid(validationTimeoutSeconds);
+         }
+         catch (SQLException ex)
+         {
+            // treated as invalid
+         }
+
+         if (!valid)
+         {
+            invalidate();
+         }
+      }
+
+      if (connection == null)
+      {
+         Connection newConnection = dataSource.getConnection();
+         try
+         {
+            newConnection.setAutoCommit(false);
+         }
+         catch (SQLException ex)
+         {
+            DBHelper.closeConnection(newConnection);
+            throw ex;
+         }
+         connection = newConnection;
+      }
+
+      lastUsed = now;
+      return connection;
+   }
+
+   /**
+    * @return the cached statement for the sql, preparing it on the current connection if needed
+    */
+   PreparedStatement prepare(String sql) throws SQLException
+   {
+      Connection conn = get();
+      PreparedStatement statement = statements.get(sql);
+      if (statement == null)
+      {
+         statement = conn.prepareStatement(sql);
+         statements.put(sql, statement);
+      }
+      return statement;
+   }
+
+   /**
+    * @return the cached plain statement, creating it on the current connection if needed
+    */
+   Statement statement() throws SQLException
+   {
+      Connection conn = get();
+      if (statement == null)
+      {
+         statement = conn.createStatement();
+      }
+      return statement;
+   }
+
+   /**
+    * Commits on the current connection.  Never reconnects, committing on a fresh
+    * connection would silently lose the statements executed on the old one.
+    */
+   void commit() throws SQLException
+   {
+      if (connection == null)
+      {
+         throw new SQLException("There is no open connection to commit");
+      }
+      connection.commit();
+   }
+
+   /**
+    * Closes the statements and the connection so that the next use reconnects.
+    */
+   void invalidate()
+   {
+      for (PreparedStatement statement : statements.values())
+      {
+         DBHelper.closeStatement(statement);
+      }
+      statements.clear();
+      DBHelper.closeStatement(statement);
+      statement = null;
+      temporaryTables.clear();
+
+      if (connection != null)
+      {
+         try
+         {
+            connection.rollback();
+         }
+         catch (Exception ex)
+         {
+
+         }
+         DBHelper.closeConnection(connection);
+         connection = null;
+      }
+   }
+
+   void close()
+   {
+      invalidate();
+   }
+}
@@ -0,0 +1,122 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Decides for which events the appenders ask logback for caller data.  The first call
+ * to ILoggingEvent.getCallerData() captures a Throwable and walks the stack of the
+ * logging thread, so skipping it for most events saves the most expensive part of
+ * logging a line.  Caller data some other appender already paid for is always used.
+ *
+ *    always        every event (the default)
+ *    never         no event
+ *    level:WARN    events at or above the level
+ *    sampled:100   one event in 100, picked at random
+ */
+class CallerDataPolicy
+{
+   static final int ALWAYS  = 0;
+   static final int NEVER   = 1;
+   static final int LEVEL   = 2;
+   static final int SAMPLED = 3;
+
+   final int        mode;
+   final int        level;
+   final int        sampleRate;
+
+   CallerDataPolicy(int mode, int level, int sampleRate)
+   {
+      this.mode = mode;
+      this.level = level;
+      this.sampleRate = sampleRate;
+   }
+
+   /**
+    * @throws IllegalArgumentException if the policy can not be parsed
+    */
+   static CallerDataPolicy parse(String policy)
+   {
+      String name = policy.trim();
+      String argument = null;
+      int colon = name.indexOf(':');
+      if (colon >= 0)
+      {
+         argument = name.substring(colon + 1).trim();
+         name = name.substring(0, colon).trim();
+      }
+
+      if ("always".equalsIgnoreCase(name) && argument == null)
+      {
+         return new CallerDataPolicy(ALWAYS, 0, 1);
+      }
+      if ("never".equalsIgnoreCase(name) && argument == null)
+      {
+         return new CallerDataPolicy(NEVER, 0, 1);
+      }
+      if ("level".equalsIgnoreCase(name) && argument != null)
+      {
+         Level level = Level.toLevel(argument, null);
+         if (level == null)
+         {
+            throw new IllegalArgumentException("Unknown level in callerDataPolicy '" + policy + "'");
+         }
+         return new CallerDataPolicy(LEVEL, level.toInt(), 1);
+      }
+      if ("sampled".equalsIgnoreCase(name) && argument != null)
+      {
+         int sampleRate;
+         try
+         {
+            sampleRate = Integer.parseInt(argument);
+         }
+         catch (NumberFormatException ex)
+         {
+            sampleRate = 0;
+         }
+         if (sampleRate < 1)
+         {
+            throw new IllegalArgumentException("callerDataPolicy sampled needs a rate of at least 1 in '" + policy + "'");
+         }
+         return new CallerDataPolicy(SAMPLED, 0, sampleRate);
+      }
+      throw new IllegalArgumentException("callerDataPolicy must be always, never, level:LEVEL or sampled:N but was '" + policy + "'");
+   }
+
+   /**
+    * @return the calling frame of the event or null if the policy skips it or there is none
+    */
+   StackTraceElement callerOf(ILoggingEvent evt)
+   {
+      if (!evt.hasCallerData())
+      {
+         switch (mode)
+         {
+            case NEVER:
+               return null;
+            case LEVEL:
+               if (evt.getLevel().toInt() < level)
+               {
+                  return null;
+               }
+               break;
+            case SAMPLED:
+               if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0)
+               {
+                  return null;
+               }
+               break;
+            default:
+               break;
+         }
+      }
+
+      StackTraceElement[] callerData = evt.getCallerData();
+      return callerData != null && callerData.length > 0 ? callerData[0] : null;
+   }
+}
@@ -0,0 +1,105 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stops a LogbackBatchDbAppender's writers from hammering a database that is down.
+ *
+ * After threshold consecutive failed attempts the breaker opens and allowRequest()
+ * refuses every writer for openMs.  Then the first caller is let through as a probe
+ * (half open): if its batch goes through the breaker closes, if not it opens again for
+ * twice as long, up to MAX_OPEN_MULTIPLIER times openMs.  Shared by all of an
+ * appender's writers and the spill replayer since they all talk to the same database.
+ */
+class CircuitBreaker
+{
+   static final int    CLOSED              = 0;
+   static final int    OPEN                = 1;
+   static final int    HALF_OPEN           = 2;
+
+   static final int    MAX_OPEN_MULTIPLIER = 8;
+
+   final int           threshold;
+   final long          openNanos;
+   final AtomicInteger state               = new AtomicInteger(CLOSED);
+   final AtomicInteger failures            = new AtomicInteger(0);  // consecutive failures while closed
+   volatile long       currentOpenNanos;
+   volatile long       openUntil;
+
+   CircuitBreaker(int threshold, long openMs)
+   {
+      this.threshold = threshold;
+      this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMs);
+      this.currentOpenNanos = openNanos;
+   }
+
+   /**
+    * @return true if the caller may use the database, either the breaker is closed or
+    * the caller is the probe of a half open breaker
+    */
+   boolean allowRequest()
+   {
+      int current = state.get();
+      if (current == CLOSED)
+      {
+         return true;
+      }
+      return current == OPEN && System.nanoTime() - openUntil >= 0 && state.compareAndSet(OPEN, HALF_OPEN);
+   }
+
+   /**
+    * @return true if this success closed the breaker
+    */
+   boolean success()
+   {
+      failures.set(0);
+      if (state.get() != CLOSED && state.getAndSet(CLOSED) != CLOSED)
+      {
+         currentOpenNanos = openNanos;
+         return true;
+      }
+      return false;
+   }
+
+   /**
+    * @return true if this failure opened the breaker
+    */
+   boolean failure()
+   {
+      if (state.get() == HALF_OPEN)
+      {
+         //the probe failed, back off for longer
+         currentOpenNanos = Math.min(currentOpenNanos * 2, openNanos * MAX_OPEN_MULTIPLIER);
+         openUntil = System.nanoTime() + currentOpenNanos;
+         return state.compareAndSet(HALF_OPEN, OPEN);
+      }
+
+      if (failures.incrementAndGet() >= threshold)
+      {
+         openUntil = System.nanoTime() + currentOpenNanos;
+         if (state.compareAndSet(CLOSED, OPEN))
+         {
+            failures.set(0);
+            return true;
+         }
+      }
+      return false;
+   }
+
+   boolean isOpen()
+   {
+      return state.get() != CLOSED;
+   }
+
+   /**
+    * @return the time until a probe is let through, 0 if it is due
+    */
+   long remainingNanos()
+   {
+      return Math.max(openUntil - System.nanoTime(), 0);
+   }
+}
@@ -0,0 +1,78 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.util.Calendar;
+
+/**
+ * Computes the dayId (yyyyMMdd as a number) and dayKey (Calendar.DAY_OF_WEEK) columns of
+ * a timestamp.  The values for the current day are computed once per day boundary and
+ * shared, so for the common case of an event from today no Calendar, formatter or
+ * string is created.  Thread safe.
+ */
+class DayCache
+{
+   volatile Day day = Day.of(System.currentTimeMillis());
+
+   int dayId(long timeStamp)
+   {
+      return dayOf(timeStamp).dayId;
+   }
+
+   int dayKey(long timeStamp)
+   {
+      return dayOf(timeStamp).dayKey;
+   }
+
+   Day dayOf(long timeStamp)
+   {
+      Day current = day;
+      if (timeStamp >= current.start && timeStamp < current.end)
+      {
+         return current;
+      }
+
+      Day other = Day.of(timeStamp);
+      if (other.start > current.start)
+      {
+         //only move forward, a late event from yesterday should not evict today
+         day = other;
+      }
+      return other;
+   }
+
+   static class Day
+   {
+      final long start;
+      final long end;
+      final int  dayId;
+      final int  dayKey;
+
+      Day(long start, long end, int dayId, int dayKey)
+      {
+         this.start = start;
+         this.end = end;
+         this.dayId = dayId;
+         this.dayKey = dayKey;
+      }
+
+      static Day of(long timeStamp)
+      {
+         Calendar cal = Calendar.getInstance();
+         cal.setTimeInMillis(timeStamp);
+         int dayId = cal.get(Calendar.YEAR) * 10000 + (cal.get(Calendar.MONTH) + 1) * 100 + cal.get(Calendar.DAY_OF_MONTH);
+         int dayKey = cal.get(Calendar.DAY_OF_WEEK);
+
+         cal.set(Calendar.HOUR_OF_DAY, 0);
+         cal.set(Calendar.MINUTE, 0);
+         cal.set(Calendar.SECOND, 0);
+         cal.set(Calendar.MILLISECOND, 0);
+         long start = cal.getTimeInMillis();
+         cal.add(Calendar.DAY_OF_MONTH, 1);
+         long end = cal.getTimeInMillis();
+
+         return new Day(start, end, dayId, dayKey);
+      }
+   }
+}
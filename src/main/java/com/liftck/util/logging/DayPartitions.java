@@ -0,0 +1,472 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import ch.qos.logback.core.db.DBHelper;
+
+/**
+ * Splits a LogbackBatchDbAppender's table by dayId so that each day's indexes stay small
+ * and a day is purged by dropping it instead of deleting its rows.
+ *
+ * In dailyTables mode rows are inserted into tableName_yyyyMMdd, a table created LIKE
+ * tableName (which only serves as the template) the first time a row of that day is
+ * written.  In rangePartitions mode rows go to tableName which must be a MySQL table
+ * partitioned BY RANGE (dayId) without a MAXVALUE partition, each day is a partition
+ * named pyyyyMMdd holding the dayIds less than yyyyMMdd + 1.
+ *
+ * A maintenance loop creates today's and tomorrow's table or partition ahead of time,
+ * so normally no DDL runs on the writers at midnight, and drops those more than
+ * retentionDays days old.  In rangePartitions mode rows of a day before the oldest
+ * partition go into the lowest one, but a row of a day above the highest bound, a day
+ * maintenance could not add in time, fails with MySQL error 1526.  The writer then adds
+ * the partitions of the batch's days itself and retries once, the batch is spilled if
+ * it still fails.
+ */
+class DayPartitions implements Runnable
+{
+   static final String            DAILY_TABLES     = "dailyTables";
+   static final String            RANGE_PARTITIONS = "rangePartitions";
+
+   final LogbackBatchDbAppender   appender;
+   final boolean                  dailyTables;
+   final int                      retentionDays;                                                   // 0 keeps every day
+   final long                     maintenanceIntervalMs;
+
+   final Set<String>              knownTables      = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+   volatile Thread                thread           = null;
+   volatile boolean               stopped          = false;
+   final CountDownLatch           finished         = new CountDownLatch(1);
+   boolean                        warnedMaxValue   = false;
+
+   DayPartitions(LogbackBatchDbAppender appender, boolean dailyTables, int retentionDays, long maintenanceIntervalMs)
+   {
+      this.appender = appender;
+      this.dailyTables = dailyTables;
+      this.retentionDays = retentionDays;
+      this.maintenanceIntervalMs = maintenanceIntervalMs;
+   }
+
+   /**
+    * @return the table rows of the given day are written to
+    */
+   String tableOf(int dayId)
+   {
+      return dailyTables ? appender.tableName + "_" + dayId : appender.tableName;
+   }
+
+   /**
+    * Creates the day tables of the rows that do not exist yet.  Must be called before the
+    * batch's first insert, including those into the stack trace table, so that the
+    * implicit commit of the DDL never splits the batch's transaction.
+    */
+   void ensureTables(CachedConnection connection, List<DbLogRow> rows) throws SQLException
+   {
+      int lastDay = 0;
+      for (DbLogRow row : rows)
+      {
+         int dayId = appender.dayId(row.timeStamp);
+         if (dayId != lastDay)
+         {
+            ensureTable(connection, tableOf(dayId));
+            lastDay = dayId;
+         }
+      }
+   }
+
+   /**
+    * Writes the rows into their day's tables with the appender's writeStrategy, the
+    * tables must have been created by ensureTables().
+    */
+   void write(CachedConnection connection, List<DbLogRow> rows) throws SQLException
+   {
+      int firstDay = appender.dayId(rows.get(0).timeStamp);
+      boolean oneDay = true;
+      for (int i = 1; i < rows.size() && oneDay; i++)
+      {
+         oneDay = appender.dayId(rows.get(i).timeStamp) == firstDay;
+      }
+
+      if (oneDay)
+      {
+         appender.batchWriteStrategy.write(appender, connection, tableOf(firstDay), rows);
+         return;
+      }
+
+      //a batch that spans midnight or holds late events
+      Map<Integer, List<DbLogRow>> byDay = new TreeMap<Integer, List<DbLogRow>>();
+      for (DbLogRow row : rows)
+      {
+         Integer dayId = appender.dayId(row.timeStamp);
+         List<DbLogRow> dayRows = byDay.get(dayId);
+         if (dayRows == null)
+         {
+            dayRows = new ArrayList<DbLogRow>();
+            byDay.put(dayId, dayRows);
+         }
+         dayRows.add(row);
+      }
+      for (Map.Entry<Integer, List<DbLogRow>> day : byDay.entrySet())
+      {
+         appender.batchWriteStrategy.write(appender, connection, tableOf(day.getKey()), day.getValue());
+      }
+   }
+
+   void ensureTable(CachedConnection connection, String table) throws SQLException
+   {
+      if (!knownTables.contains(table))
+      {
+         connection.statement().execute(createTableSql(table));
+         knownTables.add(table);
+      }
+   }
+
+   String createTableSql(String table)
+   {
+      return "CREATE TABLE IF NOT EXISTS " + table + " LIKE " + appender.tableName;
+   }
+
+   void start(Executor executor)
+   {
+      executor.execute(this);
+   }
+
+   void stop()
+   {
+      stopped = true;
+      Thread running = thread;
+      if (running != null)
+      {
+         running.interrupt();
+      }
+   }
+
+   /**
+    * @return true if the maintenance loop has exited
+    */
+   boolean awaitFinished(long timeoutNanos)
+   {
+      return LogbackBatchDbWriter.await(finished, timeoutNanos);
+   }
+
+   @Override
+   public void run()
+   {
+      thread = Thread.currentThread();
+      LogbackBatchDbWriter.WRITER_THREAD.set(Boolean.TRUE);
+      try
+      {
+         while (!stopped && !Thread.currentThread().isInterrupted())
+         {
+            maintain();
+            try
+            {
+               Thread.sleep(maintenanceIntervalMs);
+            }
+            catch (InterruptedException ex)
+            {
+               break;
+            }
+         }
+      }
+      finally
+      {
+         LogbackBatchDbWriter.WRITER_THREAD.remove();
+         thread = null;
+         finished.countDown();
+      }
+   }
+
+   /**
+    * Creates today's and tomorrow's table or partition and drops the expired ones, on a
+    * connection of its own that is only held while doing so.
+    */
+   void maintain()
+   {
+      Connection connection = null;
+      try
+      {
+         connection = appender.dataSource.getConnection();
+         long now = System.currentTimeMillis();
+         int[] ahead = {dayIdOf(now, 0), dayIdOf(now, 1)};
+         int expired = retentionDays > 0 ? dayIdOf(now, -retentionDays) : 0;
+
+         if (dailyTables)
+         {
+            createTables(connection, ahead);
+            dropTablesBefore(connection, expired);
+         }
+         else
+         {
+            addPartitions(connection, ahead);
+            dropPartitionsBefore(connection, expired);
+         }
+      }
+      catch (Exception ex)
+      {
+         appender.log.warn("Exception maintaining the day partitions of " + appender.tableName + ".", ex);
+      }
+      finally
+      {
+         DBHelper.closeConnection(connection);
+      }
+   }
+
+   void createTables(Connection connection, int[] dayIds) throws SQLException
+   {
+      Statement statement = connection.createStatement();
+      try
+      {
+         for (int dayId : dayIds)
+         {
+            String table = tableOf(dayId);
+            statement.execute(createTableSql(table));
+            knownTables.add(table);
+         }
+      }
+      finally
+      {
+         DBHelper.closeStatement(statement);
+      }
+   }
+
+   /**
+    * Drops the day tables whose dayId is before the given one, 0 drops nothing.
+    */
+   void dropTablesBefore(Connection connection, int dayId) throws SQLException
+   {
+      if (dayId <= 0)
+      {
+         return;
+      }
+
+      List<String> expired = new ArrayList<String>();
+      DatabaseMetaData metaData = connection.getMetaData();
+      String escape = metaData.getSearchStringEscape();
+      String pattern = (appender.tableName + "_").replace("_", escape + "_").replace("%", escape + "%") + "%";
+      ResultSet tables = metaData.getTables(connection.getCatalog(), null, pattern, new String[]{"TABLE"});
+      try
+      {
+         while (tables.next())
+         {
+            String table = tables.getString("TABLE_NAME");
+            int tableDay = dayIdSuffix(table, appender.tableName.length() + 1);
+            if (tableDay > 0 && tableDay < dayId)
+            {
+               expired.add(table);
+            }
+         }
+      }
+      finally
+      {
+         tables.close();
+      }
+
+      Statement statement = connection.createStatement();
+      try
+      {
+         for (String table : expired)
+         {
+            statement.execute("DROP TABLE IF EXISTS " + table);
+            knownTables.remove(table);
+            appender.forgetTable(table);
+         }
+      }
+      finally
+      {
+         DBHelper.closeStatement(statement);
+      }
+   }
+
+   /**
+    * Adds the partitions of the rows' days on a writer's connection, for a batch that
+    * failed with MySQL error 1526 because maintenance has not added its day yet.  A
+    * failure is only logged, another writer or instance may have added them meanwhile.
+    */
+   void addPartitionsFor(CachedConnection connection, List<DbLogRow> rows)
+   {
+      TreeSet<Integer> days = new TreeSet<Integer>();
+      for (DbLogRow row : rows)
+      {
+         days.add(appender.dayId(row.timeStamp));
+      }
+
+      int[] dayIds = new int[days.size()];
+      int i = 0;
+      for (Integer dayId : days)
+      {
+         dayIds[i++] = dayId;
+      }
+
+      try
+      {
+         addPartitions(connection.get(), dayIds);
+      }
+      catch (Exception ex)
+      {
+         appender.log.warn("Exception adding the day partitions of " + appender.tableName + " for a batch of log events.", ex);
+      }
+   }
+
+   /**
+    * Adds a partition for each of the days, in ascending order, that is above the
+    * table's highest bound.  Synchronized as both maintenance and the writers add them.
+    */
+   synchronized void addPartitions(Connection connection, int[] dayIds) throws SQLException
+   {
+      Map<Integer, String> partitions = partitions(connection);
+      long highest = 0;
+      for (String bound : partitions.values())
+      {
+         if ("MAXVALUE".equalsIgnoreCase(bound))
+         {
+            if (!warnedMaxValue)
+            {
+               warnedMaxValue = true;
+               appender.log.warn("Table " + appender.tableName + " has a MAXVALUE partition, day partitions can not be added to it.");
+            }
+            return;
+         }
+         try
+         {
+            highest = Math.max(highest, Long.parseLong(bound.trim()));
+         }
+         catch (NumberFormatException ex)
+         {
+            //not one of ours
+         }
+      }
+
+      Statement statement = connection.createStatement();
+      try
+      {
+         for (int dayId : dayIds)
+         {
+            if (!partitions.containsKey(dayId) && dayId + 1 > highest)
+            {
+               statement.execute("ALTER TABLE " + appender.tableName + " ADD PARTITION (PARTITION p" + dayId + " VALUES LESS THAN (" + (dayId + 1) + "))");
+               highest = dayId + 1;
+            }
+         }
+      }
+      finally
+      {
+         DBHelper.closeStatement(statement);
+      }
+   }
+
+   /**
+    * Drops the day partitions whose dayId is before the given one, 0 drops nothing.
+    */
+   void dropPartitionsBefore(Connection connection, int dayId) throws SQLException
+   {
+      if (dayId <= 0)
+      {
+         return;
+      }
+
+      StringBuilder expired = new StringBuilder();
+      for (Integer partitionDay : partitions(connection).keySet())
+      {
+         if (partitionDay > 0 && partitionDay < dayId)
+         {
+            expired.append(expired.length() > 0 ? ", p" : "p").append(partitionDay);
+         }
+      }
+
+      if (expired.length() > 0)
+      {
+         Statement statement = connection.createStatement();
+         try
+         {
+            statement.execute("ALTER TABLE " + appender.tableName + " DROP PARTITION " + expired);
+         }
+         finally
+         {
+            DBHelper.closeStatement(statement);
+         }
+      }
+   }
+
+   /**
+    * @return the upper bound (PARTITION_DESCRIPTION) of each of the table's pyyyyMMdd
+    * partitions by dayId, other partitions under negative keys
+    */
+   Map<Integer, String> partitions(Connection connection) throws SQLException
+   {
+      Map<Integer, String> partitions = new TreeMap<Integer, String>();
+      int others = 0;
+      PreparedStatement statement = connection.prepareStatement("SELECT PARTITION_NAME, PARTITION_DESCRIPTION FROM information_schema.PARTITIONS " //
+            + "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND PARTITION_NAME IS NOT NULL");
+      try
+      {
+         statement.setString(1, appender.tableName);
+         ResultSet rs = statement.executeQuery();
+         while (rs.next())
+         {
+            int dayId = dayIdSuffix(rs.getString(1), 1);
+            partitions.put(dayId > 0 ? dayId : -(++others), rs.getString(2));
+         }
+         rs.close();
+      }
+      finally
+      {
+         DBHelper.closeStatement(statement);
+      }
+      return partitions;
+   }
+
+   /**
+    * @return the yyyyMMdd number that makes up the name from the given index on, or 0
+    * if the rest of the name is not eight digits
+    */
+   static int dayIdSuffix(String name, int index)
+   {
+      if (name == null || name.length() != index + 8)
+      {
+         return 0;
+      }
+
+      int dayId = 0;
+      for (int i = index; i < name.length(); i++)
+      {
+         char c = name.charAt(i);
+         if (c < '0' || c > '9')
+         {
+            return 0;
+         }
+         dayId = dayId * 10 + (c - '0');
+      }
+      return dayId;
+   }
+
+   /**
+    * @return the dayId of the day the given number of days from the timestamp's day
+    */
+   static int dayIdOf(long timeStamp, int days)
+   {
+      Calendar cal = Calendar.getInstance();
+      cal.setTimeInMillis(timeStamp);
+      cal.add(Calendar.DAY_OF_MONTH, days);
+      return DayCache.Day.of(cal.getTimeInMillis()).dayId;
+   }
+}
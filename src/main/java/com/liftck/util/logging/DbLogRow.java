@@ -0,0 +1,126 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The per event values of a ServerMessage row, captured from an ILoggingEvent.
+ *
+ * The appender level values (service, buildVersion, machine...) and the values derived
+ * at insert time (dayId, dayKey, messageKey, messageNum) are not stored here, they are
+ * filled in when the row is bound to a statement.
+ */
+class DbLogRow
+{
+   static final Charset UTF8 = Charset.forName("UTF-8");
+
+   final long           timeStamp;
+   final int            level;
+   final String         levelName;
+   final String         category;
+   final String         className;
+   final String         method;
+   final int            lineNumber;
+   final String         message;
+   final String         error;
+   final int            occurrences;    // number of events coalesced into this row
+   final long           firstTimeStamp; // timestamp of the first of those events
+   long                 sequence;       // order the row was queued in, set by LeveledEventQueue
+
+   DbLogRow(long timeStamp, int level, String levelName, String category, String className, String method, int lineNumber, String message, String error)
+   {
+      this(timeStamp, level, levelName, category, className, method, lineNumber, message, error, 1, timeStamp);
+   }
+
+   DbLogRow(long timeStamp, int level, String levelName, String category, String className, String method, int lineNumber, String message, String error, int occurrences, long firstTimeStamp)
+   {
+      this.timeStamp = timeStamp;
+      this.level = level;
+      this.levelName = levelName;
+      this.category = category;
+      this.className = className;
+      this.method = method;
+      this.lineNumber = lineNumber;
+      this.message = message;
+      this.error = error;
+      this.occurrences = occurrences;
+      this.firstTimeStamp = firstTimeStamp;
+   }
+
+   /**
+    * Writes the row at the buffer's position.
+    * @throws java.nio.BufferOverflowException if the buffer is too small
+    */
+   void encode(ByteBuffer buffer)
+   {
+      buffer.putLong(timeStamp);
+      buffer.putInt(level);
+      putString(buffer, levelName);
+      putString(buffer, category);
+      putString(buffer, className);
+      putString(buffer, method);
+      buffer.putInt(lineNumber);
+      putString(buffer, message);
+      putString(buffer, error);
+      buffer.putInt(occurrences);
+      buffer.putLong(firstTimeStamp);
+   }
+
+   /**
+    * Reads a row written by encode() from the buffer's position.
+    */
+   static DbLogRow decode(ByteBuffer buffer)
+   {
+      long timeStamp = buffer.getLong();
+      int level = buffer.getInt();
+      String levelName = getString(buffer);
+      String category = getString(buffer);
+      String className = getString(buffer);
+      String method = getString(buffer);
+      int lineNumber = buffer.getInt();
+      String message = getString(buffer);
+      String error = getString(buffer);
+      int occurrences = buffer.getInt();
+      long firstTimeStamp = buffer.getLong();
+      return new DbLogRow(timeStamp, level, levelName, category, className, method, lineNumber, message, error, occurrences, firstTimeStamp);
+   }
+
+   static void putString(ByteBuffer buffer, String value)
+   {
+      if (value == null)
+      {
+         buffer.putInt(-1);
+         return;
+      }
+
+      byte[] bytes = value.getBytes(UTF8);
+      buffer.putInt(bytes.length);
+      buffer.put(bytes);
+   }
+
+   static String getString(ByteBuffer buffer)
+   {
+      int length = buffer.getInt();
+      if (length < 0)
+      {
+         return null;
+      }
+
+      String value;
+      if (buffer.hasArray())
+      {
+         value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF8);
+         buffer.position(buffer.position() + length);
+      }
+      else
+      {
+         byte[] bytes = new byte[length];
+         buffer.get(bytes);
+         value = new String(bytes, UTF8);
+      }
+      return value;
+   }
+}
@@ -0,0 +1,106 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collapses the rows of one batch that share a level, category and messageKey into a
+ * single row carrying the number of occurrences and the first and last timestamps.
+ *
+ * The collapsed row keeps the message, error and caller of the most recent occurrence
+ * and takes the batch position of the first one.  Coalescing already coalesced rows
+ * (for example when spilled rows are replayed) adds their counts together.
+ */
+class EventCoalescer
+{
+   final LogbackBatchDbAppender appender;
+
+   EventCoalescer(LogbackBatchDbAppender appender)
+   {
+      this.appender = appender;
+   }
+
+   List<DbLogRow> coalesce(List<DbLogRow> rows)
+   {
+      if (rows.size() < 2)
+      {
+         return rows;
+      }
+
+      Map<Key, DbLogRow> coalesced = new LinkedHashMap<Key, DbLogRow>(rows.size() * 2);
+      for (DbLogRow row : rows)
+      {
+         Key key = new Key(row.level, row.category, appender.getMessageKey(row.message));
+         DbLogRow previous = coalesced.get(key);
+         if (previous == null)
+         {
+            coalesced.put(key, row);
+         }
+         else
+         {
+            coalesced.put(key, merge(previous, row));
+         }
+      }
+
+      if (coalesced.size() == rows.size())
+      {
+         return rows;
+      }
+      return new ArrayList<DbLogRow>(coalesced.values());
+   }
+
+   static DbLogRow merge(DbLogRow previous, DbLogRow row)
+   {
+      DbLogRow first = previous.firstTimeStamp <= row.firstTimeStamp ? previous : row;
+      DbLogRow last = previous.timeStamp > row.timeStamp ? previous : row;
+      return new DbLogRow(last.timeStamp, last.level, last.levelName, last.category, last.className, last.method, last.lineNumber, last.message, last.error, //
+            previous.occurrences + row.occurrences, first.firstTimeStamp);
+   }
+
+   static class Key
+   {
+      final int    level;
+      final String category;
+      final String messageKey;
+      final int    hash;
+
+      Key(int level, String category, String messageKey)
+      {
+         this.level = level;
+         this.category = category;
+         this.messageKey = messageKey;
+
+         int h = level;
+         h = 31 * h + (category == null ? 0 : category.hashCode());
+         h = 31 * h + (messageKey == null ? 0 : messageKey.hashCode());
+         this.hash = h;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return hash;
+      }
+
+      @Override
+      public boolean equals(Object obj)
+      {
+         if (!(obj instanceof Key))
+         {
+            return false;
+         }
+         Key other = (Key) obj;
+         return level == other.level && equal(category, other.category) && equal(messageKey, other.messageKey);
+      }
+
+      static boolean equal(String a, String b)
+      {
+         return a == null ? b == null : a.equals(b);
+      }
+   }
+}
@@ -0,0 +1,109 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Base class of the bounded multi-producer / single-consumer queues that sit between
+ * LogbackBatchDbAppender.append() and a writer thread.
+ *
+ * It owns the consumer parking protocol: the consumer parks while fewer than a
+ * requested number of elements are queued and only the first producer to see that
+ * threshold reached unparks it, so a burst of events results in one wakeup.
+ *
+ * @param <E> the element type
+ */
+abstract class EventQueue<E>
+{
+   final AtomicReference<Thread> waiter        = new AtomicReference<Thread>(null); // the parked consumer, if any
+   volatile int                  wakeThreshold = 1;                                 // queued elements needed to unpark the consumer
+
+   /**
+    * Adds the element to the tail of the queue.
+    * @return false if the queue is full and the element was not added
+    */
+   abstract boolean offer(E e);
+
+   /**
+    * Removes the element at the head of the queue.  Must only be called by the consumer thread.
+    * @return the element or null if the queue is empty
+    */
+   abstract E poll();
+
+   /**
+    * Removes a queued element to make room for the incoming one.  Unlike poll() this may
+    * be called by a producer, queues that do not support eviction return null.
+    * @return the removed element or null if nothing was removed
+    */
+   E evict(E incoming)
+   {
+      return null;
+   }
+
+   abstract boolean isEmpty();
+
+   abstract int size();
+
+   /**
+    * @return the most elements the queue can hold
+    */
+   abstract int capacity();
+
+   /**
+    * Moves up to max elements into the given collection.  Must only be called by the consumer thread.
+    * @return the number of elements moved
+    */
+   int drainTo(Collection<? super E> c, int max)
+   {
+      int count = 0;
+      E e;
+      while (count < max && (e = poll()) != null)
+      {
+         c.add(e);
+         count++;
+      }
+      return count;
+   }
+
+   /**
+    * Parks the consumer thread until an element is published, the timeout elapses or
+    * the thread is interrupted.  Must only be called by the consumer thread.
+    */
+   void await(long timeoutNanos)
+   {
+      await(timeoutNanos, 1);
+   }
+
+   /**
+    * Parks the consumer thread until at least minSize elements are queued, the timeout
+    * elapses or the thread is interrupted.  Must only be called by the consumer thread.
+    */
+   void await(long timeoutNanos, int minSize)
+   {
+      Thread current = Thread.currentThread();
+      wakeThreshold = Math.max(1, Math.min(minSize, capacity()));
+      waiter.set(current);
+      if (size() < wakeThreshold && !current.isInterrupted())
+      {
+         LockSupport.parkNanos(this, timeoutNanos);
+      }
+      waiter.compareAndSet(current, null);
+   }
+
+   /**
+    * Called by a producer after publishing, unparks the consumer if it is waiting for no
+    * more than the given number of queued elements.
+    */
+   void signal(long queued)
+   {
+      Thread parked = waiter.get();
+      if (parked != null && queued >= wakeThreshold && waiter.compareAndSet(parked, null))
+      {
+         LockSupport.unpark(parked);
+      }
+   }
+}
@@ -0,0 +1,144 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A preallocated, bounded, lock free multi-producer / single-consumer ring buffer.
+ *
+ * Producers claim a slot with a single CAS on the tail sequence and publish it by
+ * advancing that slot's sequence number (disruptor style), so offer() never blocks
+ * and never allocates.  The head is claimed with a CAS as well so that a producer can
+ * evict the oldest element to make room for its own.
+ *
+ * @param <E> the element type
+ */
+class EventRingBuffer<E> extends EventQueue<E>
+{
+   final int                     capacity;
+   final Object[]                buffer;
+   final AtomicLongArray         sequences;
+
+   final AtomicLong              tail   = new AtomicLong(0);
+   final AtomicLong              head   = new AtomicLong(0);
+
+   EventRingBuffer(int capacity)
+   {
+      if (capacity < 1)
+      {
+         throw new IllegalArgumentException("EventRingBuffer capacity must be at least 1 but was " + capacity);
+      }
+
+      this.capacity = capacity;
+      this.buffer = new Object[capacity];
+      this.sequences = new AtomicLongArray(capacity);
+      for (int i = 0; i < capacity; i++)
+      {
+         sequences.set(i, i);
+      }
+   }
+
+   @Override
+   boolean offer(E e)
+   {
+      long pos;
+      int index;
+      while (true)
+      {
+         pos = tail.get();
+         index = (int) (pos % capacity);
+         long dif = sequences.get(index) - pos;
+         if (dif == 0)
+         {
+            if (tail.compareAndSet(pos, pos + 1))
+            {
+               break;
+            }
+         }
+         else if (dif < 0)
+         {
+            return false; // the slot has not been consumed yet so the buffer is full
+         }
+      }
+
+      buffer[index] = e;
+      sequences.set(index, pos + 1);
+
+      signal(pos + 1 - head.get());
+      return true;
+   }
+
+   @Override
+   @SuppressWarnings("unchecked")
+   E poll()
+   {
+      while (true)
+      {
+         long pos = head.get();
+         int index = (int) (pos % capacity);
+         if (sequences.get(index) != pos + 1)
+         {
+            return null;
+         }
+
+         E e = (E) buffer[index];
+         if (head.compareAndSet(pos, pos + 1))
+         {
+            buffer[index] = null;
+            sequences.lazySet(index, pos + capacity);
+            return e;
+         }
+      }
+   }
+
+   /**
+    * @return the element at the head without removing it, or null if the queue is empty
+    */
+   @SuppressWarnings("unchecked")
+   E peek()
+   {
+      long pos = head.get();
+      int index = (int) (pos % capacity);
+      if (sequences.get(index) != pos + 1)
+      {
+         return null;
+      }
+      return (E) buffer[index];
+   }
+
+   /**
+    * Removes the oldest element, safe to call from a producer.
+    */
+   @Override
+   E evict(E incoming)
+   {
+      return poll();
+   }
+
+   @Override
+   boolean isEmpty()
+   {
+      long pos = head.get();
+      return sequences.get((int) (pos % capacity)) != pos + 1;
+   }
+
+   @Override
+   int size()
+   {
+      long size = tail.get() - head.get();
+      if (size < 0)
+      {
+         return 0;
+      }
+      return (int) Math.min(size, capacity);
+   }
+
+   @Override
+   int capacity()
+   {
+      return capacity;
+   }
+}
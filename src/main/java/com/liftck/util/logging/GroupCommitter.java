@@ -0,0 +1,189 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group commit for LogbackDbAppender.  Callers that log at about the same time join one
+ * group, the first of them becomes its leader and inserts every row of the group in a
+ * single transaction while the others wait.  Every caller returns only once the
+ * transaction holding its row has committed (or failed), so append() keeps its
+ * synchronous guarantee at a fraction of the transactions.
+ *
+ * The leader waits up to windowNanos for followers, or until the group holds
+ * maxGroupSize rows, and then for any previous leader to finish, so a group keeps
+ * filling for as long as the database is busy with the one before it.  A leader that
+ * finds the database idle and whose previous group had no followers either writes at
+ * once, so a lone caller does not pay the window on every event.
+ */
+class GroupCommitter
+{
+   final LogbackDbAppender appender;
+   final long              windowNanos;
+   final int               maxGroupSize;
+
+   final ReentrantLock     writeLock     = new ReentrantLock(); // held by the leader writing its group
+   Group                   open          = null;                // the group new callers join, guarded by this
+   volatile int            lastGroupSize = 0;                   // rows in the last group written
+
+   static class Group
+   {
+      final List<DbLogRow> rows  = new ArrayList<DbLogRow>();
+      boolean              done  = false;
+      SQLException         error = null;
+   }
+
+   GroupCommitter(LogbackDbAppender appender, long windowMs, int maxGroupSize)
+   {
+      this.appender = appender;
+      this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+      this.maxGroupSize = maxGroupSize;
+   }
+
+   /**
+    * Inserts the row as part of a group and returns once that group is committed.
+    * @throws SQLException the failure of the group's transaction
+    */
+   void submit(DbLogRow row) throws SQLException
+   {
+      Group group;
+      boolean leader;
+      synchronized (this)
+      {
+         leader = open == null;
+         if (leader)
+         {
+            open = new Group();
+         }
+         group = open;
+         group.rows.add(row);
+
+         if (group.rows.size() >= maxGroupSize)
+         {
+            //full, the next caller starts a new group and the leader stops waiting
+            open = null;
+            notifyAll();
+         }
+      }
+
+      if (leader)
+      {
+         lead(group);
+      }
+      else
+      {
+         follow(group);
+      }
+   }
+
+   void lead(Group group) throws SQLException
+   {
+      boolean interrupted = false;
+
+      //no window when nobody is writing and the last group was a lone caller as well
+      boolean locked = lastGroupSize <= 1 && writeLock.tryLock();
+      if (!locked)
+      {
+         synchronized (this)
+         {
+            long deadline = System.nanoTime() + windowNanos;
+            long remaining;
+            while (open == group && (remaining = deadline - System.nanoTime()) > 0)
+            {
+               try
+               {
+                  TimeUnit.NANOSECONDS.timedWait(this, remaining);
+               }
+               catch (InterruptedException ex)
+               {
+                  interrupted = true;
+                  break;
+               }
+            }
+         }
+         writeLock.lock();
+      }
+
+      try
+      {
+         synchronized (this)
+         {
+            if (open == group)
+            {
+               open = null;
+            }
+            lastGroupSize = group.rows.size();
+         }
+
+         SQLException error = null;
+         try
+         {
+            appender.insertRows(group.rows);
+         }
+         catch (SQLException ex)
+         {
+            error = ex;
+         }
+         catch (Throwable ex)
+         {
+            //the followers must be released whatever happens
+            error = new SQLException(ex);
+         }
+
+         synchronized (group)
+         {
+            group.error = error;
+            group.done = true;
+            group.notifyAll();
+         }
+
+         if (error != null)
+         {
+            throw error;
+         }
+      }
+      finally
+      {
+         writeLock.unlock();
+         if (interrupted)
+         {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   void follow(Group group) throws SQLException
+   {
+      boolean interrupted = false;
+      synchronized (group)
+      {
+         //not interruptible, the caller must not return before its row is committed
+         while (!group.done)
+         {
+            try
+            {
+               group.wait();
+            }
+            catch (InterruptedException ex)
+            {
+               interrupted = true;
+            }
+         }
+      }
+
+      if (interrupted)
+      {
+         Thread.currentThread().interrupt();
+      }
+      if (group.error != null)
+      {
+         throw group.error;
+      }
+   }
+}
@@ -0,0 +1,30 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Binds every row to the single row upsert and sends them with addBatch/executeBatch.
+ *
+ * This is only cheap when the driver rewrites batches into multi row statements
+ * (rewriteBatchedStatements=true for MySQL), otherwise every row is its own round trip.
+ */
+class JdbcBatchWriteStrategy implements BatchWriteStrategy
+{
+   @Override
+   public void write(LogbackBatchDbAppender appender, CachedConnection connection, String table, List<DbLogRow> rows) throws SQLException
+   {
+      PreparedStatement statement = connection.prepare(appender.insertSql(table, 1));
+      for (DbLogRow row : rows)
+      {
+         appender.populateStatement(row, statement, 1);
+         statement.addBatch();
+      }
+
+      statement.executeBatch();
+   }
+}
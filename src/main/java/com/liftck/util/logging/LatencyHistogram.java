@@ -0,0 +1,96 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of non negative values with one bucket per power of two, so
+ * recording is a numberOfLeadingZeros and two LongAdder increments and percentiles are
+ * accurate to within a factor of two.
+ */
+class LatencyHistogram
+{
+   final LongAdder[] buckets = new LongAdder[65];  // bucket i holds values below 2^i and at least 2^(i-1)
+   final LongAdder   sum     = new LongAdder();
+   final AtomicLong  max     = new AtomicLong(0);
+
+   LatencyHistogram()
+   {
+      for (int i = 0; i < buckets.length; i++)
+      {
+         buckets[i] = new LongAdder();
+      }
+   }
+
+   void record(long value)
+   {
+      if (value < 0)
+      {
+         value = 0;
+      }
+
+      buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+      sum.add(value);
+
+      long current = max.get();
+      while (value > current && !max.compareAndSet(current, value))
+      {
+         current = max.get();
+      }
+   }
+
+   long count()
+   {
+      long count = 0;
+      for (LongAdder bucket : buckets)
+      {
+         count += bucket.sum();
+      }
+      return count;
+   }
+
+   long mean()
+   {
+      long count = count();
+      return count == 0 ? 0 : sum.sum() / count;
+   }
+
+   long max()
+   {
+      return max.get();
+   }
+
+   /**
+    * @return an upper bound of the given percentile (0-100) of the recorded values
+    */
+   long percentile(double percentile)
+   {
+      long[] counts = new long[buckets.length];
+      long count = 0;
+      for (int i = 0; i < buckets.length; i++)
+      {
+         counts[i] = buckets[i].sum();
+         count += counts[i];
+      }
+      if (count == 0)
+      {
+         return 0;
+      }
+
+      long rank = (long) Math.ceil(count * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++)
+      {
+         seen += counts[i];
+         if (seen >= rank)
+         {
+            long upper = i == 0 ? 0 : i >= 63 ? Long.MAX_VALUE : (1L << i) - 1;
+            return Math.min(upper, max.get());
+         }
+      }
+      return max.get();
+   }
+}
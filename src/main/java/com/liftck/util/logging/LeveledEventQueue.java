@@ -0,0 +1,102 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.qos.logback.classic.Level;
+
+/**
+ * A queue of DbLogRows that keeps WARN and ERROR rows in a separate lane from the lower
+ * levels so that, when the queue is full, a WARN or ERROR row can evict the oldest lower
+ * level row instead of being dropped itself.
+ *
+ * Both lanes share one capacity.  Each row is stamped with a sequence number shared by
+ * both lanes as it is offered and the consumer takes whichever lane's head was offered
+ * first, so rows come out in the order they were queued apart from those evicted.
+ * Timestamps can not be used for that, they tie within a millisecond and a slow
+ * producer's row can be older than rows queued before it.
+ */
+class LeveledEventQueue extends EventQueue<DbLogRow>
+{
+   final int                       capacity;
+   final EventRingBuffer<DbLogRow> high;
+   final EventRingBuffer<DbLogRow> low;
+   final AtomicLong                sequence = new AtomicLong(0);
+
+   LeveledEventQueue(int capacity)
+   {
+      this.capacity = capacity;
+      this.high = new EventRingBuffer<DbLogRow>(capacity);
+      this.low = new EventRingBuffer<DbLogRow>(capacity);
+   }
+
+   static boolean isHigh(DbLogRow row)
+   {
+      return row.level >= Level.WARN_INT;
+   }
+
+   @Override
+   boolean offer(DbLogRow row)
+   {
+      //the shared bound is checked without a lock, concurrent producers may overshoot
+      //it by a few rows but each lane is still bounded by capacity
+      if (size() >= capacity)
+      {
+         return false;
+      }
+
+      row.sequence = sequence.getAndIncrement();
+      if (!(isHigh(row) ? high : low).offer(row))
+      {
+         return false;
+      }
+
+      signal(size());
+      return true;
+   }
+
+   @Override
+   DbLogRow poll()
+   {
+      DbLogRow first = high.peek();
+      DbLogRow second = low.peek();
+      if (first == null || (second != null && second.sequence < first.sequence))
+      {
+         DbLogRow row = low.poll();
+         if (row != null)
+         {
+            return row;
+         }
+      }
+      return high.poll();
+   }
+
+   /**
+    * Evicts the oldest lower level row, only for a WARN or ERROR row.
+    */
+   @Override
+   DbLogRow evict(DbLogRow incoming)
+   {
+      return isHigh(incoming) ? low.poll() : null;
+   }
+
+   @Override
+   boolean isEmpty()
+   {
+      return high.isEmpty() && low.isEmpty();
+   }
+
+   @Override
+   int size()
+   {
+      return high.size() + low.size();
+   }
+
+   @Override
+   int capacity()
+   {
+      return capacity;
+   }
+}
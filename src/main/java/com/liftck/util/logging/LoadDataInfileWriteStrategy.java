@@ -0,0 +1,304 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Streams the whole batch to MySQL with a single LOAD DATA LOCAL INFILE statement, the
+ * rows are encoded as tab separated UTF-8 straight into a per thread buffer that is
+ * handed to Connector/J as the file's content.
+ *
+ * LOAD DATA has no ON DUPLICATE KEY UPDATE, and REPLACE would delete and reinsert rows,
+ * resetting the columns it does not load and firing delete triggers.  So the batch is
+ * loaded into a temporary staging table, tableName_load, and upserted from there with
+ * INSERT ... SELECT ... ON DUPLICATE KEY UPDATE, the same update the other strategies
+ * use.  The staging table is created once per connection, shared by all day tables as
+ * they have the same columns, only lives as long as the connection and never commits
+ * implicitly.  The connection url needs allowLoadLocalInfile=true and the server needs
+ * local_infile enabled.
+ */
+class LoadDataInfileWriteStrategy implements BatchWriteStrategy
+{
+   static final String[]                          STATEMENT_CLASSES = {"com.mysql.cj.jdbc.JdbcStatement", "com.mysql.jdbc.Statement"};
+   static final int                               MAX_RETAINED_BYTES = 4 * 1024 * 1024;      // larger buffers are not kept for the next batch
+
+   final ConcurrentHashMap<String, String[]>      sqlByTable        = new ConcurrentHashMap<String, String[]>();
+   final ThreadLocal<RowBuffer>                   buffers           = new ThreadLocal<RowBuffer>();
+
+   /**
+    * @return the statements that write a batch to the table: create the staging table,
+    * load it, upsert from it and empty it
+    */
+   static String[] loadSql(LogbackBatchDbAppender appender, String table)
+   {
+      String staging = stagingTable(appender);
+      String columns = appender.insertColumns.substring(1, appender.insertColumns.length() - 1);
+      return new String[]{ //
+            "CREATE TEMPORARY TABLE IF NOT EXISTS " + staging + " AS SELECT " + columns + " FROM " + appender.tableName + " LIMIT 0", //
+            "LOAD DATA LOCAL INFILE 'logback-batch.tsv' INTO TABLE " + staging //
+                  + " CHARACTER SET utf8mb4 FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\' LINES TERMINATED BY '\\n' " + appender.insertColumns, //
+            appender.appendUpdate(new StringBuilder("INSERT INTO " + table + " " + appender.insertColumns + " SELECT " + columns + " FROM " + staging)).toString(), //
+            "DELETE FROM " + staging};
+   }
+
+   static String stagingTable(LogbackBatchDbAppender appender)
+   {
+      return appender.tableName + "_load";
+   }
+
+   @Override
+   public void write(LogbackBatchDbAppender appender, CachedConnection connection, String table, List<DbLogRow> rows) throws SQLException
+   {
+      String[] sql = sqlByTable.get(table);
+      if (sql == null)
+      {
+         sql = loadSql(appender, table);
+         sqlByTable.put(table, sql);
+      }
+
+      RowBuffer buffer = buffers.get();
+      if (buffer == null)
+      {
+         buffer = new RowBuffer(rows.size() * 256);
+         buffers.set(buffer);
+      }
+
+      try
+      {
+         for (DbLogRow row : rows)
+         {
+            appendRow(appender, row, buffer);
+         }
+
+         Statement statement = connection.statement();
+         String staging = stagingTable(appender);
+         if (!connection.temporaryTables.contains(staging))
+         {
+            statement.execute(sql[0]);
+            connection.temporaryTables.add(staging);
+         }
+         setLocalInfileInputStream(statement, buffer.inputStream());
+         statement.execute(sql[1]);
+         statement.execute(sql[2]);
+         statement.execute(sql[3]);
+      }
+      finally
+      {
+         if (buffer.bytes.length > MAX_RETAINED_BYTES)
+         {
+            buffers.remove();
+         }
+         buffer.count = 0;
+      }
+   }
+
+   /**
+    * Writes the row as one line of text, columns in the same order as insertColumns.
+    */
+   void appendRow(LogbackBatchDbAppender appender, DbLogRow row, RowBuffer out)
+   {
+      out.number(appender.dayId(row.timeStamp)).tab();
+      out.number(appender.dayKey(row.timeStamp)).tab();
+      out.field(appender.service).tab();
+      out.number(row.level).tab();
+      out.field(row.levelName).tab();
+      out.field(row.category).tab();
+      out.field(row.className).tab();
+      out.field(row.method).tab();
+      out.number(row.lineNumber).tab();
+      out.field(appender.getMessageKey(row.message)).tab();
+      out.field(row.message).tab();
+      out.field(appender.errorOf(row)).tab();
+      out.field(appender.buildVersion).tab();
+      out.field(appender.machine).tab();
+      out.field(appender.machineIp).tab();
+      out.number(appender.nextMessageNum()).tab();
+      out.field(new Timestamp(row.timeStamp).toString()).tab();
+      out.number(row.timeStamp);
+      if (appender.coalesce)
+      {
+         out.tab().number(row.occurrences);
+         out.tab().field(new Timestamp(row.firstTimeStamp).toString());
+      }
+      out.write('\n');
+   }
+
+   /**
+    * A growable byte array the rows are encoded into, read back by Connector/J without
+    * another copy.
+    */
+   static class RowBuffer
+   {
+      byte[] bytes;
+      int    count = 0;
+
+      RowBuffer(int capacity)
+      {
+         bytes = new byte[Math.max(capacity, 1024)];
+      }
+
+      InputStream inputStream()
+      {
+         return new ByteArrayInputStream(bytes, 0, count);
+      }
+
+      void ensure(int more)
+      {
+         if (count + more > bytes.length)
+         {
+            byte[] bigger = new byte[Math.max(bytes.length * 2, count + more)];
+            System.arraycopy(bytes, 0, bigger, 0, count);
+            bytes = bigger;
+         }
+      }
+
+      RowBuffer write(char ascii)
+      {
+         ensure(1);
+         bytes[count++] = (byte) ascii;
+         return this;
+      }
+
+      RowBuffer tab()
+      {
+         return write('\t');
+      }
+
+      RowBuffer number(long value)
+      {
+         if (value < 0)
+         {
+            return field(Long.toString(value));
+         }
+
+         ensure(20);
+         int start = count;
+         do
+         {
+            bytes[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+         }
+         while (value > 0);
+
+         for (int i = start, j = count - 1; i < j; i++, j--)
+         {
+            byte b = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = b;
+         }
+         return this;
+      }
+
+      /**
+       * Writes the value escaped for LOAD DATA and encoded as UTF-8, \N for null.
+       */
+      RowBuffer field(String value)
+      {
+         if (value == null)
+         {
+            return write('\\').write('N');
+         }
+
+         ensure(value.length());
+         for (int i = 0; i < value.length(); i++)
+         {
+            char c = value.charAt(i);
+            switch (c)
+            {
+               case '\\':
+                  write('\\').write('\\');
+                  break;
+               case '\t':
+                  write('\\').write('t');
+                  break;
+               case '\n':
+                  write('\\').write('n');
+                  break;
+               case '\r':
+                  write('\\').write('r');
+                  break;
+               case '\0':
+                  write('\\').write('0');
+                  break;
+               default:
+                  if (c < 0x80)
+                  {
+                     write(c);
+                  }
+                  else if (c < 0x800)
+                  {
+                     ensure(2);
+                     bytes[count++] = (byte) (0xC0 | (c >> 6));
+                     bytes[count++] = (byte) (0x80 | (c & 0x3F));
+                  }
+                  else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1)))
+                  {
+                     int cp = Character.toCodePoint(c, value.charAt(++i));
+                     ensure(4);
+                     bytes[count++] = (byte) (0xF0 | (cp >> 18));
+                     bytes[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                     bytes[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                     bytes[count++] = (byte) (0x80 | (cp & 0x3F));
+                  }
+                  else if (Character.isSurrogate(c))
+                  {
+                     //unpaired, replaced like String.getBytes() does
+                     write('?');
+                  }
+                  else
+                  {
+                     ensure(3);
+                     bytes[count++] = (byte) (0xE0 | (c >> 12));
+                     bytes[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                     bytes[count++] = (byte) (0x80 | (c & 0x3F));
+                  }
+            }
+         }
+         return this;
+      }
+   }
+
+   /**
+    * Connector/J reads LOAD DATA LOCAL INFILE content from this stream instead of the
+    * file system, it is called reflectively so there is no compile time dependency on
+    * the driver.
+    */
+   static void setLocalInfileInputStream(Statement statement, InputStream stream) throws SQLException
+   {
+      for (String className : STATEMENT_CLASSES)
+      {
+         try
+         {
+            Class<?> mysqlStatement = Class.forName(className);
+            if (statement.isWrapperFor(mysqlStatement))
+            {
+               Method method = mysqlStatement.getMethod("setLocalInfileInputStream", InputStream.class);
+               method.invoke(statement.unwrap(mysqlStatement), stream);
+               return;
+            }
+         }
+         catch (ClassNotFoundException ex)
+         {
+            // try the next driver version
+         }
+         catch (SQLException ex)
+         {
+            throw ex;
+         }
+         catch (Exception ex)
+         {
+            throw new SQLException("Unable to set the LOAD DATA LOCAL INFILE stream on " + className, ex);
+         }
+      }
+      throw new SQLException("writeStrategy loadDataInfile requires the MySQL Connector/J driver");
+   }
+}
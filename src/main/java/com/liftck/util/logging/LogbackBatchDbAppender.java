@@ -3,16 +3,24 @@
  */
 package com.liftck.util.logging;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
-import java.sql.Connection;
+import java.sql.BatchUpdateException;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
 import java.sql.Timestamp;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
 
 import javax.sql.DataSource;
 
@@ -21,9 +29,7 @@ import org.slf4j.LoggerFactory;
 
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.IThrowableProxy;
-import ch.qos.logback.classic.spi.StackTraceElementProxy;
 import ch.qos.logback.core.UnsynchronizedAppenderBase;
-import ch.qos.logback.core.db.DBHelper;
 
 /**
  * @author tc-rocket
@@ -40,26 +46,97 @@ public class LogbackBatchDbAppender extends UnsynchronizedAppenderBase<ILoggingE
    static final int          MAX_MSGKEY_LENGTH = 100;
    static final int          MAX_STACK_LENGTH  = 10000;                                        // max number of characters of a stack trace
 
+   static final String       INSERT_COLUMNS    = "`dayId`, `dayKey`, `service`, `level`, `levelName`, `category`, `className`, `method`, `lineNumber`, `messageKey`, " //
+         + "`message`, `error`, `buildVersion`, `machine`, `machineIp`, `messageNum`, `timestamp`, `lastModified`";
+   static final String       INSERT_VALUES     = "?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?";
+   static final int          MAX_INTERNED_STRINGS = 10000;                                     // max distinct strings shared between queued rows
+
+   static final int          ER_NO_PARTITION_FOR_GIVEN_VALUE = 1526;                           // MySQL's error for a row outside every range partition, SQLState HY000
+
+   static final String       COALESCE_COLUMNS  = ", `occurrences`, `firstTimestamp`";
+   static final String       COALESCE_VALUES   = ", ?, ?";
+
    // configureable properties
    DataSource                dataSource;
    String                    tableName;
    String                    service;
    int                       maxMessagesPerDay = 1000;
+   int                       stackTraceCacheSize = 1024;                                       // number of formatted stack traces to cache, 0 to disable
+   int                       messageKeyCacheSize = MessageKeys.DEFAULT_CACHE_SIZE;             // number of message templates whose key is cached, 0 to disable
    int                       maxQueue          = 10000;
+   String                    overflowPolicy    = "dropNewest";                                 // dropNewest, dropOldest, dropLowestLevel or block
+   long                      overflowBlockMs   = 100;                                          // max time a caller waits for room with the block policy
+   long                      offHeapQueueBytes = 0;                                            // when set rows are queued off heap in this many bytes instead of maxQueue rows
+   int                       maxBatchSize      = 1000;                                         // max number of events committed in one transaction
+   long                      maxLingerMs       = 0;                                            // max time an event waits for its batch to fill up
+   int                       writerThreads     = 1;                                            // number of queue shards, each with its own writer and connection
+   long                      validationIntervalMs     = 30000;                                 // validate a writer's connection after it has been idle this long
+   int                       validationTimeoutSeconds = 5;
+   String                    spillDirectory    = null;                                         // spill to disk when the queue is full or the db is failing
+   int                       spillSegmentBytes = 16 * 1024 * 1024;
+   long                      maxSpillBytes     = 256 * 1024 * 1024;
+   long                      spillReplayIntervalMs    = 1000;
+   String                    writeStrategy     = "jdbcBatch";                                  // jdbcBatch, multiRowValues or loadDataInfile
+   int                       rowsPerStatement  = 100;                                          // rows per statement for multiRowValues
+   boolean                   coalesce          = false;                                        // collapse repeated events in a batch into one row with a count
+   boolean                   jmxEnabled        = true;                                         // register the metrics with the platform MBeanServer
+   String                    callerDataPolicy  = "always";                                     // always, never, level:WARN or sampled:100
+   String                    writerExecutor    = "platform";                                   // platform or virtual (Java 21+) writer threads
+   Executor                  executor          = null;                                         // runs the writer loops instead of writerExecutor when set
+   long                      shutdownTimeoutMs = 5000;                                         // how long stop() may spend writing what is still queued
+   int                       shutdownBatchSize = 10000;                                        // max number of events committed in one transaction while stopping
+   boolean                   shutdownHook      = false;                                        // stop, and so flush, this appender when the JVM shuts down
+   String                    partitioning      = "none";                                       // none, dailyTables or rangePartitions on dayId
+   int                       retentionDays     = 0;                                            // drop day tables or partitions older than this, 0 keeps them all
+   long                      partitionMaintenanceIntervalMs = 3600000;                         // how often days are created ahead and expired ones dropped
+   String                    stackTraceTable   = null;                                         // when set each distinct stack trace is stored once in this table
+   String                    rollupTable       = null;                                         // when set per minute event counts are added to this table
+   long                      rollupFlushIntervalMs    = 10000;                                 // how often the counts are written to the rollup table
+   String                    rateLimits        = null;                                         // LEVEL=eventsPerMinute pairs limiting each messageKey, e.g. ERROR=600,INFO=60
+   int                       rateLimitBurst    = 20;                                           // events a messageKey may write at once before its rate applies
+   long                      rateLimitSummaryIntervalMs = 60000;                               // how often a row counting the suppressed events is written
+   int                       maxRetries        = 3;                                            // times a failed batch is retried before it is spilled
+   long                      retryBackoffMs    = 100;                                          // backoff before the first retry, doubled for each one after
+   long                      maxRetryBackoffMs = 5000;
+   int                       circuitBreakerThreshold  = 5;                                     // consecutive failed attempts that stop all writes to the db
+   long                      circuitBreakerOpenMs     = 10000;                                 // how long writes stop for before one batch probes the db
 
    // internal members
-   private String            insertSql;
+   ConcurrentHashMap<String, String[]> insertSqlByTable = new ConcurrentHashMap<String, String[]>(); // upserts by table and row count
+   String                    insertColumns;
+   String                    insertValues;
+   EventCoalescer            coalescer;
+   OverflowPolicy            overflow;
+   CallerDataPolicy          callerData;
+   final AppenderMetrics     metrics           = new AppenderMetrics();
+   RateLimiter               rateLimiter;
+   RollupCounters            rollups;
+   CircuitBreaker            circuitBreaker;
+   StackTraceStore           stackTraces;
+   StringInterner            interner          = new StringInterner(MAX_INTERNED_STRINGS);
+   MessageKeys               messageKeys       = null;
    private int               messageNum        = 0;
-   private SimpleDateFormat  dayIdFormat       = new SimpleDateFormat("yyyyMMdd");
-   private String            buildVersion;
-   private String            machine;
-   private String            machineIp;
+   DayCache                  dayCache          = new DayCache();
+   StackTraceFormatter       stackTraceFormatter;
+   String                    buildVersion;
+   String                    machine;
+   String                    machineIp;
+   BatchWriteStrategy        batchWriteStrategy;
+
+   LogbackBatchDbWriter[]    writers           = null;
+   String                    writerThreadName  = "LogbackBatchDbAppender.writerThread";
+   long                      writerParkNanos   = TimeUnit.SECONDS.toNanos(1);
 
-   Connection                connection        = null;
-   LinkedList<ILoggingEvent> queue             = null;
+   SpillLog                  spillLog          = null;
+   SpillLogReplayer          spillReplayer     = null;
+   DayPartitions             dayPartitions     = null;
 
-   Thread                    writerThread      = null;
-   String                    writerThreadName  = "LogbackBatchDbAppender.writerThread";
+   static final long         SHUTDOWN_GRACE_NANOS = TimeUnit.MILLISECONDS.toNanos(1000);      // how long an interrupted writer gets to exit after the deadline
+   final Object              stopLock          = new Object();
+   Thread                    shutdownThread    = null;
+   long                      shutdownFlushed   = 0;
+   long                      shutdownSpilled   = 0;
+   long                      shutdownAbandoned = 0;
 
    @Override
    public void start()
@@ -76,6 +153,88 @@ public class LogbackBatchDbAppender extends UnsynchronizedAppenderBase<ILoggingE
       {
          throw new RuntimeException("LogbackDbAppender not initialized - You must specify a service\n" + getExampleUsage());
       }
+      if (maxBatchSize < 1)
+      {
+         throw new RuntimeException("LogbackDbAppender not initialized - maxBatchSize must be at least 1\n" + getExampleUsage());
+      }
+      if (writerThreads < 1)
+      {
+         throw new RuntimeException("LogbackDbAppender not initialized - writerThreads must be at least 1\n" + getExampleUsage());
+      }
+      if (offHeapQueueBytes > 0 && offHeapQueueBytes / writerThreads < OffHeapRowRing.BLOCK_SIZE)
+      {
+         throw new RuntimeException("LogbackDbAppender not initialized - offHeapQueueBytes is too small for " + writerThreads + " writerThreads\n" + getExampleUsage());
+      }
+      if (shutdownBatchSize < 1)
+      {
+         throw new RuntimeException("LogbackDbAppender not initialized - shutdownBatchSize must be at least 1\n" + getExampleUsage());
+      }
+      if (rowsPerStatement < 1)
+      {
+         throw new RuntimeException("LogbackDbAppender not initialized - rowsPerStatement must be at least 1\n" + getExampleUsage());
+      }
+      try
+      {
+         callerData = CallerDataPolicy.parse(callerDataPolicy);
+      }
+      catch (IllegalArgumentException ex)
+      {
+         throw new RuntimeException("LogbackDbAppender not initialized - " + ex.getMessage() + "\n" + getExampleUsage());
+      }
+      if (executor == null && !"platform".equalsIgnoreCase(writerExecutor) && !"virtual".equalsIgnoreCase(writerExecutor))
+      {
+         throw new RuntimeException("LogbackDbAppender not initialized - writerExecutor must be platform or virtual\n" + getExampleUsage());
+      }
+      if (maxRetries < 0 || retryBackoffMs < 0 || maxRetryBackoffMs < retryBackoffMs)
+      {
+         throw new RuntimeException("LogbackDbAppender not initialized - maxRetries and retryBackoffMs can not be negative and maxRetryBackoffMs must be at least retryBackoffMs\n" + getExampleUsage());
+      }
+      if (circuitBreakerThreshold < 1)
+      {
+         throw new RuntimeException("LogbackDbAppender not initialized - circuitBreakerThreshold must be at least 1\n" + getExampleUsage());
+      }
+      if (retentionDays < 0)
+      {
+         throw new RuntimeException("LogbackDbAppender not initialized - retentionDays can not be negative\n" + getExampleUsage());
+      }
+      if (DayPartitions.DAILY_TABLES.equalsIgnoreCase(partitioning) || DayPartitions.RANGE_PARTITIONS.equalsIgnoreCase(partitioning))
+      {
+         dayPartitions = new DayPartitions(this, DayPartitions.DAILY_TABLES.equalsIgnoreCase(partitioning), retentionDays, partitionMaintenanceIntervalMs);
+      }
+      else if (!"none".equalsIgnoreCase(partitioning))
+      {
+         throw new RuntimeException("LogbackDbAppender not initialized - partitioning must be none, dailyTables or rangePartitions\n" + getExampleUsage());
+      }
+      overflow = OverflowPolicy.forName(overflowPolicy);
+      if (overflow == null)
+      {
+         throw new RuntimeException("LogbackDbAppender not initialized - unknown overflowPolicy " + overflowPolicy + "\n" + getExampleUsage());
+      }
+      if (offHeapQueueBytes > 0 && (overflow == OverflowPolicy.DROP_OLDEST || overflow == OverflowPolicy.DROP_LOWEST_LEVEL))
+      {
+         throw new RuntimeException("LogbackDbAppender not initialized - overflowPolicy " + overflowPolicy + " can not be used with offHeapQueueBytes\n" + getExampleUsage());
+      }
+      buildWriteStrategy();
+      if (stackTraceTable != null)
+      {
+         stackTraces = new StackTraceStore(stackTraceTable, Math.max(stackTraceCacheSize, 1024));
+      }
+      circuitBreaker = new CircuitBreaker(circuitBreakerThreshold, circuitBreakerOpenMs);
+      if (rollupTable != null)
+      {
+         rollups = new RollupCounters(this, rollupTable, MAX_INTERNED_STRINGS, rollupFlushIntervalMs);
+      }
+      if (rateLimits != null)
+      {
+         try
+         {
+            rateLimiter = new RateLimiter(rateLimits, rateLimitBurst, MAX_INTERNED_STRINGS, rateLimitSummaryIntervalMs);
+         }
+         catch (IllegalArgumentException ex)
+         {
+            throw new RuntimeException("LogbackDbAppender not initialized - invalid rateLimits: " + ex.getMessage() + "\n" + getExampleUsage());
+         }
+      }
 
       loadBuildInfo();
 
@@ -93,37 +252,219 @@ public class LogbackBatchDbAppender extends UnsynchronizedAppenderBase<ILoggingE
       }
 
       buildInsertSql();
+      stackTraceFormatter = new StackTraceFormatter(MAX_STACK_LENGTH, stackTraceCacheSize);
+      messageKeys = new MessageKeys(MAX_MSGKEY_LENGTH, messageKeyCacheSize);
+      coalescer = coalesce ? new EventCoalescer(this) : null;
       this.init();
+      initMetrics();
       super.start();
+
+      if (shutdownHook)
+      {
+         shutdownThread = new Thread(new Runnable()
+            {
+               @Override
+               public void run()
+               {
+                  LogbackBatchDbAppender.this.stop();
+               }
+            }, writerThreadName + "-shutdown");
+         Runtime.getRuntime().addShutdownHook(shutdownThread);
+      }
+   }
+
+   /**
+    * @return the Executor that runs the loop of the writer or replayer with the given thread name
+    */
+   Executor executorFor(String threadName)
+   {
+      if (executor != null)
+      {
+         return executor;
+      }
+      if ("virtual".equalsIgnoreCase(writerExecutor))
+      {
+         if (WriterThreads.virtualThreadsSupported())
+         {
+            return WriterThreads.virtual(threadName);
+         }
+         System.out.println("Warning virtual writer threads need Java 21 or later, LogbackBatchDbAppender is using platform threads");
+      }
+      return WriterThreads.platform(threadName);
    }
 
+   void initMetrics()
+   {
+      metrics.queueDepth = new IntSupplier()
+         {
+            @Override
+            public int getAsInt()
+            {
+               int depth = 0;
+               for (LogbackBatchDbWriter writer : writers)
+               {
+                  depth += writer.queue.size();
+               }
+               return depth;
+            }
+         };
+      metrics.rateLimited = new LongSupplier()
+         {
+            @Override
+            public long getAsLong()
+            {
+               return getRateLimitedEvents();
+            }
+         };
+
+      if (jmxEnabled)
+      {
+         metrics.register(getClass().getSimpleName(), getName() != null ? getName() : service);
+      }
+   }
+
+   /**
+    * Stops taking events and writes what is still queued in batches of up to
+    * shutdownBatchSize rows for at most shutdownTimeoutMs.  Events still queued at the
+    * deadline are spilled if there is a spill log and abandoned otherwise.
+    */
    @Override
    public void stop()
    {
-
-      try
+      //not synchronized on this, the writers lock this while stopping waits for them
+      synchronized (stopLock)
       {
-         if (writerThread.isAlive())
+         if (!isStarted())
+         {
+            return;
+         }
+
+         //append() ignores events from here on so the queues only shrink
+         super.stop();
+         removeShutdownHook();
+         flushRateLimitSummary(true);
+
+         //spilled events stay on disk for the next start, once the replayer and the partition
+         //maintenance have let go of the database the writers get it to themselves
+         long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeoutMs);
+         if (spillReplayer != null)
+         {
+            spillReplayer.stop();
+         }
+         if (dayPartitions != null)
+         {
+            dayPartitions.stop();
+         }
+         boolean replayerFinished = spillReplayer == null || spillReplayer.awaitFinished(deadline - System.nanoTime());
+         if (!replayerFinished)
+         {
+            spillReplayer.abort();
+            replayerFinished = spillReplayer.awaitFinished(SHUTDOWN_GRACE_NANOS);
+         }
+         if (dayPartitions != null)
+         {
+            dayPartitions.awaitFinished(deadline - System.nanoTime());
+         }
+
+         shutdownFlushed = 0;
+         shutdownSpilled = 0;
+         shutdownAbandoned = 0;
+         if (writers != null)
+         {
+            for (LogbackBatchDbWriter writer : writers)
+            {
+               writer.drain(deadline);
+            }
+            for (LogbackBatchDbWriter writer : writers)
+            {
+               writer.awaitFinished(deadline - System.nanoTime());
+            }
+
+            //interrupt writers still busy at the deadline
+            for (LogbackBatchDbWriter writer : writers)
+            {
+               writer.stop();
+            }
+
+            long grace = System.nanoTime() + SHUTDOWN_GRACE_NANOS;
+            for (LogbackBatchDbWriter writer : writers)
+            {
+               boolean finished = writer.awaitFinished(grace - System.nanoTime());
+               shutdownFlushed += writer.flushed;
+               if (finished)
+               {
+                  spillRemaining(writer.queue);
+               }
+               else
+               {
+                  //the writer still owns its queue, what is in it is lost
+                  shutdownAbandoned += writer.queue.size();
+               }
+            }
+            metrics.failed.add(shutdownAbandoned);
+         }
+
+         if (rollups != null)
+         {
+            CachedConnection connection = new CachedConnection(dataSource, validationIntervalMs, validationTimeoutSeconds, maxCachedStatements());
+            flushRollups(connection, true);
+            connection.close();
+         }
+         if (spillLog != null && replayerFinished)
+         {
+            spillLog.close();
+         }
+         else if (spillLog != null)
+         {
+            //unmapping the segments under a running replayer could crash the JVM, the OS flushes them
+            System.out.println("Warning LogbackBatchDbAppender spill replayer did not stop, the spill log was left open");
+         }
+         metrics.unregister();
+
+         //the flushed and spilled counts are available from getShutdownFlushed() and getShutdownSpilled()
+         if (shutdownAbandoned > 0)
          {
-            writerThread.interrupt();
+            System.out.println("Warning LogbackBatchDbAppender stopped, " + shutdownFlushed + " queued events were flushed, " //
+                  + shutdownSpilled + " spilled and " + shutdownAbandoned + " abandoned");
          }
       }
-      catch (Exception ex)
-      {
+   }
 
+   /**
+    * Moves the rows left in a stopped writer's queue to the spill log, counting those
+    * that do not fit as abandoned.
+    */
+   void spillRemaining(EventQueue<DbLogRow> queue)
+   {
+      DbLogRow row;
+      while ((row = queue.poll()) != null)
+      {
+         if (spillLog != null && spillLog.append(row))
+         {
+            metrics.spilled.increment();
+            shutdownSpilled++;
+         }
+         else
+         {
+            shutdownAbandoned++;
+         }
       }
+   }
 
-      if (connection != null)
+   void removeShutdownHook()
+   {
+      if (shutdownThread != null && shutdownThread != Thread.currentThread())
       {
          try
          {
-            connection.close();
+            Runtime.getRuntime().removeShutdownHook(shutdownThread);
          }
-         catch (Exception ex)
+         catch (IllegalStateException ex)
          {
-
+            //the JVM is already shutting down
          }
       }
+      shutdownThread = null;
    }
 
    @Override
@@ -132,95 +473,150 @@ public class LogbackBatchDbAppender extends UnsynchronizedAppenderBase<ILoggingE
 
       //don't send log message created by the database logging thread
       //to the database, this will more then likely cause an infinate loop
-      if (event.getThreadName().equals(writerThreadName))
+      if (LogbackBatchDbWriter.isWriterThread())
          return;
 
       //don't send log messages generated by this appender to the DB
       if (thisLogger.equals(event.getLoggerName()))
          return;
 
-      push(event);
-   }
+      metrics.appended.increment();
+      long start = System.nanoTime();
+      try
+      {
+         if (rateLimiter != null || rollups != null)
+         {
+            String msg = event.getMessage();
+            if (msg != null && msg.length() >= MAX_MSG_LENGTH)
+            {
+               msg = msg.substring(0, MAX_MSG_LENGTH);
+            }
+            String messageKey = getMessageKey(msg);
+            String category = interner.intern(event.getLoggerName());
 
-   protected synchronized void init()
-   {
-      queue = new LinkedList<ILoggingEvent>();
+            //counted before the rate limits so the rollups include suppressed events
+            if (rollups != null)
+            {
+               rollups.count(event.getTimeStamp(), event.getLevel().toInt(), category, messageKey);
+            }
 
-      writerThread = new Thread(new Runnable()
-         {
-            @Override
-            public void run()
+            if (rateLimiter != null)
             {
-               insertEvents();
+               boolean allowed = rateLimiter.tryAcquire(event.getLevel().toInt(), messageKey, category, msg, event.getTimeStamp());
+               flushRateLimitSummary(false);
+               if (!allowed)
+               {
+                  return;
+               }
             }
-         }, writerThreadName);
-      writerThread.setDaemon(true);
-      writerThread.start();
+         }
+
+         //capture only what the row needs so the event itself can be collected right away
+         push(toRow(event));
+      }
+      finally
+      {
+         metrics.appendLatency.record(System.nanoTime() - start);
+      }
    }
 
-   protected void insertEvents()
+   /**
+    * Queues a row for each messageKey that had events suppressed by the rate limits since
+    * the last summary.
+    * @param force write the summary even if the summary interval has not passed
+    */
+   void flushRateLimitSummary(boolean force)
    {
-      PreparedStatement statement = null;
+      if (rateLimiter != null && (rateLimiter.summaryDue() || force))
+      {
+         for (DbLogRow row : rateLimiter.summary())
+         {
+            push(row);
+         }
+      }
+   }
 
-      while (true)
+   /**
+    * Adds the rollup counts to the rollup table on the given connection if the flush
+    * interval has passed.  Called by the writers between batches.
+    * @param force flush even if the flush interval has not passed
+    */
+   void flushRollups(CachedConnection connection, boolean force)
+   {
+      if (rollups != null && (force || (!circuitBreaker.isOpen() && rollups.flushDue())))
       {
          try
          {
-            List<ILoggingEvent> events = pop();
-
-            connection = dataSource.getConnection();
-            connection.setAutoCommit(false);
-            statement = connection.prepareStatement(insertSql);
-
-            while (events != null && events.size() > 0)
-            {
+            rollups.flush(connection);
+         }
+         catch (Exception ex)
+         {
+            //the counts were put back, the next flush retries them
+            connection.invalidate();
+            log.warn("Exception adding the rollup counts to " + rollupTable + ".  They will be retried.", ex);
+         }
+      }
+   }
 
-               for (ILoggingEvent event : events)
-               {
-                  populateStatement(event, statement);
-                  statement.addBatch();
-               }
+   protected synchronized void init()
+   {
+      if (dayPartitions != null)
+      {
+         dayPartitions.start(executorFor(writerThreadName + "-partitions"));
+      }
 
-               statement.executeBatch();
-               connection.commit();
+      if (spillDirectory != null)
+      {
+         try
+         {
+            spillLog = new SpillLog(new File(spillDirectory), spillSegmentBytes, maxSpillBytes);
+            spillReplayer = new SpillLogReplayer(this, spillLog, writerThreadName + "-spill");
+            spillReplayer.start(executorFor(writerThreadName + "-spill"));
+         }
+         catch (IOException ex)
+         {
+            System.out.println("Warning spill log could not be opened in LogbackBatchDbAppender, spilling to disk is disabled: " + ex);
+            spillLog = null;
+         }
+      }
 
-               synchronized (this)
-               {
-                  //check to see if new events have arrived and process them 
-                  //immediately if so
-                  if (queue.size() > 0)
-                  {
-                     events = pop();
-                  }
-                  else
-                  {
-                     events = null;
-                  }
-               }
-            }
+      int capacity = (maxQueue + writerThreads - 1) / writerThreads;
+      int capacityBytes = (int) Math.min(Integer.MAX_VALUE, offHeapQueueBytes / writerThreads);
 
-            statement.close();
-            connection.close();
+      writers = new LogbackBatchDbWriter[writerThreads];
+      for (int i = 0; i < writers.length; i++)
+      {
+         String threadName = writers.length == 1 ? writerThreadName : writerThreadName + "-" + i;
+         EventQueue<DbLogRow> queue;
+         if (offHeapQueueBytes > 0)
+         {
+            queue = new OffHeapRowRing(capacityBytes);
          }
-         catch (Exception ex)
+         else if (overflow == OverflowPolicy.DROP_LOWEST_LEVEL)
          {
-            log.warn("Exception committing a batch of log events to the db.  These log events will be thrown away.", ex);
+            queue = new LeveledEventQueue(capacity);
          }
-         finally
+         else
          {
-            DBHelper.closeStatement(statement);
-            DBHelper.closeConnection(connection);
+            queue = new EventRingBuffer<DbLogRow>(capacity);
          }
+         writers[i] = new LogbackBatchDbWriter(this, queue, threadName);
+         writers[i].start(executorFor(threadName));
       }
    }
 
    protected void populateStatement(ILoggingEvent evt, PreparedStatement statement) throws SQLException
    {
+      populateStatement(toRow(evt), statement, 1);
+   }
 
-      Timestamp ts = new Timestamp(evt.getTimeStamp());
-      Calendar cal = Calendar.getInstance();
-      cal.setTime(ts);
-
+   /**
+    * Captures the per event column values of the event.  The logger, class and method
+    * names are interned so queued rows share them, messages are not as a flood of unique
+    * ones would fill the intern table before the names get in.
+    */
+   DbLogRow toRow(ILoggingEvent evt)
+   {
       String msg = evt.getMessage();
       if (msg.length() >= MAX_MSG_LENGTH)
       {
@@ -231,44 +627,51 @@ public class LogbackBatchDbAppender extends UnsynchronizedAppenderBase<ILoggingE
       IThrowableProxy throwableProxy = evt.getThrowableProxy();
       if (throwableProxy != null)
       {
-         stackTrace = buildStackTrace(new StringBuilder(), throwableProxy, 1).toString();
+         stackTrace = stackTraceFormatter.format(throwableProxy);
       }
 
       String className = "unknown";
       String methodName = "unknown";
       int lineNumber = 0;
-      if (evt.getCallerData() != null && evt.getCallerData().length > 0)
+      StackTraceElement ste = callerData.callerOf(evt);
+      if (ste != null)
       {
-         StackTraceElement ste = evt.getCallerData()[0];
-         className = ste.getClassName();
-         methodName = ste.getMethodName();
+         className = interner.intern(ste.getClassName());
+         methodName = interner.intern(ste.getMethodName());
          lineNumber = ste.getLineNumber();
       }
 
-      int i = 1;
+      return new DbLogRow(evt.getTimeStamp(), evt.getLevel().toInt(), evt.getLevel().toString(), interner.intern(evt.getLoggerName()), className, methodName, lineNumber, msg, stackTrace);
+   }
+
+   /**
+    * Binds the row's columns to the statement starting at parameter index i.
+    * @return the index of the next unbound parameter
+    */
+   int populateStatement(DbLogRow row, PreparedStatement statement, int i) throws SQLException
+   {
+      Timestamp ts = new Timestamp(row.timeStamp);
 
       // dayId, dayKey, service, level, levelName, category, className, method, 
       // messageKey, message, error, machine, machineIp, messageNum, timestamp, lastModified
-      int dayId = Integer.parseInt(dayIdFormat.format(ts));
-      statement.setInt(i++, dayId);
-
-      int dayKey = cal.get(Calendar.DAY_OF_WEEK);
-      statement.setInt(i++, dayKey);
+      DayCache.Day day = dayCache.dayOf(row.timeStamp);
+      statement.setInt(i++, day.dayId);
+      statement.setInt(i++, day.dayKey);
 
       statement.setString(i++, service); // service
 
-      statement.setInt(i++, evt.getLevel().toInt());
-      statement.setString(i++, evt.getLevel().toString());
+      statement.setInt(i++, row.level);
+      statement.setString(i++, row.levelName);
 
-      statement.setString(i++, evt.getLoggerName()); // category
-      statement.setString(i++, className); // className
-      statement.setString(i++, methodName); // method
-      statement.setInt(i++, lineNumber); // lineNumber
+      statement.setString(i++, row.category); // category
+      statement.setString(i++, row.className); // className
+      statement.setString(i++, row.method); // method
+      statement.setInt(i++, row.lineNumber); // lineNumber
 
-      statement.setString(i++, getMessageKey(msg)); // messageKey
-      statement.setString(i++, msg); // message
+      statement.setString(i++, getMessageKey(row.message)); // messageKey
+      statement.setString(i++, row.message); // message
 
-      statement.setString(i++, stackTrace); // error
+      statement.setString(i++, errorOf(row)); // error
 
       statement.setString(i++, buildVersion); // buildVersion
       statement.setString(i++, machine); // machine
@@ -276,181 +679,535 @@ public class LogbackBatchDbAppender extends UnsynchronizedAppenderBase<ILoggingE
 
       statement.setInt(i++, nextMessageNum()); // messageNum
       statement.setTimestamp(i++, ts); // timestamp
-      statement.setLong(i++, evt.getTimeStamp()); // lastModified
-
-   }
+      statement.setLong(i++, row.timeStamp); // lastModified
 
-   synchronized void push(ILoggingEvent event)
-   {
-      if (queue.size() >= maxQueue)
+      if (coalesce)
       {
-         log.warn("Exceeding queue length.  LoggingEvent will be discarded" + event.getMessage());
-         return;
+         statement.setInt(i++, row.occurrences); // occurrences
+         statement.setTimestamp(i++, new Timestamp(row.firstTimeStamp)); // firstTimestamp
       }
 
-      queue.add(event);
-      if (queue.size() >= 1)
-         this.notifyAll();
+      return i;
    }
 
-   synchronized List<ILoggingEvent> pop()
+   /**
+    * @return the value of the row's error column, a reference into stackTraceTable when
+    * stack traces are deduplicated
+    */
+   String errorOf(DbLogRow row)
    {
-      while (queue.size() == 0)
-      {
-         try
-         {
-            this.wait();
-         }
-         catch (Exception ex)
-         {
-
-         }
-      }
-
-      List<ILoggingEvent> oldQueue = queue;
-      queue = new LinkedList<ILoggingEvent>();
-      return oldQueue;
+      return stackTraces != null ? stackTraces.columnValue(row.error) : row.error;
    }
 
    /**
-    * This will attempt to load the META-INF/build-info.properties and use the build.buildtime property for the buildVersion
-    * The build-info.properties file is generated by gradle at build time.
+    * @return the timestamp's day as a yyyyMMdd number
     */
-   private void loadBuildInfo()
+   int dayId(long timeStamp)
    {
-      buildVersion = "unknown";
-      try
-      {
-         Properties props = new Properties();
-         props.load(this.getClass().getClassLoader().getResourceAsStream("META-INF/build-info.properties"));
-         buildVersion = props.getProperty("build.buildtime");
-      }
-      catch (Exception e)
-      {
-         System.out.println("Warning buildVersion could not be found in LogbackDbAppender trying to use META-INF/build-info.properties");
-      }
+      return dayCache.dayId(timeStamp);
    }
 
-   private void buildInsertSql()
+   /**
+    * @return the timestamp's Calendar.DAY_OF_WEEK
+    */
+   int dayKey(long timeStamp)
    {
-      insertSql = " INSERT INTO " + tableName + //
-            " (`dayId`, `dayKey`, `service`, `level`, `levelName`, `category`, `className`, `method`, `lineNumber`, `messageKey`, "//
-            + "`message`, `error`, `buildVersion`, `machine`, `machineIp`, `messageNum`, `timestamp`, `lastModified`) "//
-            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) "//
-            + "ON DUPLICATE KEY UPDATE "//
-            + "dayId=VALUES(dayId), level=VALUES(level), levelName=VALUES(levelName), category=VALUES(category), className=VALUES(className), " //
-            + "method=VALUES(method), lineNumber=VALUES(lineNumber), messageKey=VALUES(messageKey),message=VALUES(message), error=VALUES(error), " //
-            + "buildVersion=VALUES(buildVersion), machine=VALUES(machine), timestamp=VALUES(timestamp), lastModified=VALUES(lastModified)";
+      return dayCache.dayKey(timeStamp);
    }
 
    /**
-    * Attempts to create a key from a given message.
-    * A key has a maximum length of MAX_MSGKEY_LENGTH
-    * @param message
-    * @return the shortest possible key or null if the message is null
+    * Inserts and commits the rows as one batch on the given connection using the
+    * configured writeStrategy.
     */
-   private String getMessageKey(String message)
+   void insertRows(CachedConnection connection, List<DbLogRow> rows) throws SQLException
    {
-      int MIN = 4;
-      if (message == null)
-         return null;
+      List<DbLogRow> insert = coalescer != null ? coalescer.coalesce(rows) : rows;
 
-      if (message.length() >= MAX_MSGKEY_LENGTH)
+      long start = System.nanoTime();
+      if (dayPartitions != null && dayPartitions.dailyTables)
       {
-         message = message.substring(0, MAX_MSGKEY_LENGTH);
+         //DDL commits implicitly, so it has to run before anything of the batch is written
+         dayPartitions.ensureTables(connection, insert);
       }
-
-      int endOfKeyIndex = message.length();
-      endOfKeyIndex = findMessageKeyIndex(endOfKeyIndex, message, MIN, ". ");
-      endOfKeyIndex = findMessageKeyIndex(endOfKeyIndex, message, MIN, "=");
-      endOfKeyIndex = findMessageKeyIndex(endOfKeyIndex, message, MIN, ": ");
-      endOfKeyIndex = findMessageKeyIndex(endOfKeyIndex, message, MIN, "-");
-      endOfKeyIndex = findMessageKeyIndex(endOfKeyIndex, message, MIN, "\n");
-      endOfKeyIndex = findMessageKeyIndex(endOfKeyIndex, message, MIN, "\t");
-      endOfKeyIndex = findMessageKeyIndex(endOfKeyIndex, message, MIN, "**");
-
-      if (endOfKeyIndex > 0)
+      List<String> stackTracesWritten = stackTraces != null ? stackTraces.write(connection, insert) : null;
+      if (dayPartitions != null && dayPartitions.dailyTables)
       {
-         return message.substring(0, endOfKeyIndex);
+         dayPartitions.write(connection, insert);
       }
       else
       {
-         return message;
+         batchWriteStrategy.write(this, connection, tableName, insert);
+      }
+      long executed = System.nanoTime();
+      connection.commit();
+      metrics.recordBatch(rows, executed - start, System.nanoTime() - executed);
+      if (stackTraces != null)
+      {
+         stackTraces.committed(stackTracesWritten);
       }
-
    }
 
-   private int findMessageKeyIndex(int oldIndex, String message, int minIndex, String character)
-   {
+   /**
+    * Inserts the rows with insertRows(), retrying a batch that failed because of the
+    * database up to maxRetries times with exponential backoff and full jitter.  A batch
+    * rejected because of its rows is bisected so only the rows that fail on their own are
+    * thrown away.  A batch with a day that has no range partition yet adds it and is
+    * retried once.  Every attempt is reported to the circuitBreaker and the retries stop
+    * as soon as it opens.
+    * @param rows the batch, left holding only the rows that were not written on failure
+    * @throws SQLException the last failure, the rows left should be spilled unless it is
+    * a data error
+    */
+   void insertWithRetry(CachedConnection connection, List<DbLogRow> rows) throws SQLException
+   {
+      List<DbLogRow> remaining = rows;
+      boolean partitionsAdded = false;
+      for (int attempt = 0;; attempt++)
+      {
+         SQLException failure;
+         try
+         {
+            insertRows(connection, remaining);
+            databaseAvailable();
+            return;
+         }
+         catch (SQLException ex)
+         {
+            //the next attempt will reconnect and prepare a fresh statement
+            connection.invalidate();
+            failure = ex;
+         }
+         catch (RuntimeException ex)
+         {
+            connection.invalidate();
+            failure = new SQLException(ex);
+         }
+
+         if (isRowError(failure))
+         {
+            databaseAvailable();
+            List<DbLogRow> unwritten = new ArrayList<DbLogRow>();
+            failure = bisect(connection, remaining, failure, unwritten);
+            if (failure == null)
+            {
+               return;
+            }
+            remaining = unwritten;
+         }
+         else if (isDataError(failure))
+         {
+            //the statement itself is rejected, no row of the batch will ever insert
+            databaseAvailable();
+            throw failure;
+         }
+
+         if (hasErrorCode(failure, ER_NO_PARTITION_FOR_GIVEN_VALUE))
+         {
+            //a day above the highest range partition, maintenance has not added it
+            databaseAvailable();
+            if (!partitionsAdded && dayPartitions != null && !dayPartitions.dailyTables)
+            {
+               partitionsAdded = true;
+               dayPartitions.addPartitionsFor(connection, remaining);
+               continue;
+            }
+            keep(rows, remaining);
+            throw failure;
+         }
+
+         databaseUnavailable(failure);
+         if (attempt >= maxRetries || circuitBreaker.isOpen() || Thread.currentThread().isInterrupted())
+         {
+            keep(rows, remaining);
+            throw failure;
+         }
+
+         long backoff = retryBackoffMs;
+         for (int i = 0; i < attempt && backoff < maxRetryBackoffMs; i++)
+         {
+            backoff *= 2;
+         }
+         metrics.retries.increment();
+         try
+         {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(Math.min(backoff, maxRetryBackoffMs) + 1));
+         }
+         catch (InterruptedException ex)
+         {
+            Thread.currentThread().interrupt();
+            keep(rows, remaining);
+            throw failure;
+         }
+      }
+   }
 
-      int i = message.indexOf(character);
-      if (oldIndex > i && i > minIndex)
+   /**
+    * Splits a batch rejected because of its rows in halves and inserts each half on its
+    * own, recursively, until the rows that fail alone are found and thrown away.
+    * @return null once every row is written or thrown away, otherwise the failure that
+    * stopped the bisection, the rows not written are then added to unwritten in order
+    */
+   SQLException bisect(CachedConnection connection, List<DbLogRow> rows, SQLException cause, List<DbLogRow> unwritten)
+   {
+      if (rows.size() == 1)
       {
-         oldIndex = i;
+         metrics.failed.increment();
+         metrics.poisonRows.increment();
+         log.warn("Exception inserting a log event to the db.  This log event will be thrown away: " + rows.get(0).message, cause);
+         return null;
       }
 
-      return oldIndex;
+      int middle = rows.size() / 2;
+      List<DbLogRow> second = rows.subList(middle, rows.size());
+      SQLException failure = insertHalf(connection, rows.subList(0, middle), unwritten);
+      if (failure != null)
+      {
+         unwritten.addAll(second);
+         return failure;
+      }
+      return insertHalf(connection, second, unwritten);
    }
 
-   private synchronized int nextMessageNum()
+   SQLException insertHalf(CachedConnection connection, List<DbLogRow> half, List<DbLogRow> unwritten)
    {
-      messageNum++;
-      if (messageNum > maxMessagesPerDay)
+      try
       {
-         messageNum = 1;
+         insertRows(connection, half);
+         return null;
       }
-      return messageNum;
+      catch (SQLException ex)
+      {
+         connection.invalidate();
+         if (isRowError(ex))
+         {
+            return bisect(connection, half, ex, unwritten);
+         }
+         unwritten.addAll(half);
+         return ex;
+      }
+      catch (RuntimeException ex)
+      {
+         connection.invalidate();
+         unwritten.addAll(half);
+         return new SQLException(ex);
+      }
+   }
+
+   /**
+    * Replaces the content of rows with that of remaining, if they are not the same list.
+    */
+   static void keep(List<DbLogRow> rows, List<DbLogRow> remaining)
+   {
+      if (remaining != rows)
+      {
+         rows.clear();
+         rows.addAll(remaining);
+      }
+   }
+
+   void databaseAvailable()
+   {
+      if (circuitBreaker.success())
+      {
+         log.info("The db is available again, log events are written to it again.");
+      }
+   }
+
+   void databaseUnavailable(SQLException ex)
+   {
+      if (circuitBreaker.failure())
+      {
+         metrics.breakerTrips.increment();
+         log.warn("Exception writing log events to the db.  No log events will be written to it for the next " //
+               + TimeUnit.NANOSECONDS.toMillis(circuitBreaker.remainingNanos()) + "ms.", ex);
+      }
+   }
+
+   /**
+    * Writes the rows to the spill log, if one is configured, so they are replayed later.
+    * @return false if there is no spill log or it could not take all of the rows
+    */
+   boolean spill(List<DbLogRow> rows)
+   {
+      if (spillLog == null)
+      {
+         return false;
+      }
+
+      boolean all = true;
+      for (DbLogRow row : rows)
+      {
+         if (spillLog.append(row))
+         {
+            metrics.spilled.increment();
+         }
+         else
+         {
+            all = false;
+         }
+      }
+      return all;
+   }
+
+   /**
+    * @return true if the exception was caused by the data being inserted rather than the
+    * database being unavailable, retrying such rows would fail again
+    */
+   static boolean isDataError(Throwable ex)
+   {
+      return hasSqlState(ex, "22", "23", "42");
    }
 
-   private StringBuilder buildStackTrace(StringBuilder sb, IThrowableProxy throwableProxy, int level)
+   /**
+    * @return true if the exception was caused by some of the rows being inserted, such as
+    * a value too long or a duplicate key, so that the rest of the batch would insert
+    */
+   static boolean isRowError(Throwable ex)
    {
-      int maxLevel = 5;
-      int standardLineLimit = 2;
-      int causeLineLimit = 12;
+      if (hasSqlState(ex, "22", "23"))
+      {
+         return true;
+      }
+      //a driver that does not say why a batch failed, bisecting finds out, unless it is
+      //a day without a range partition which every row of that day would fail on
+      return ex instanceof BatchUpdateException && !isDataError(ex) && !isTransient(ex) && !hasErrorCode(ex, ER_NO_PARTITION_FOR_GIVEN_VALUE);
+   }
 
-      if (throwableProxy != null && level < maxLevel)
+   static boolean isTransient(Throwable ex)
+   {
+      for (Throwable cause = ex; cause != null; cause = cause.getCause())
       {
-         if (level > 1)
+         if (cause instanceof SQLTransientException || cause instanceof SQLRecoverableException)
          {
-            sb.append("Caused by: ");
+            return true;
          }
-         sb.append(throwableProxy.getClassName()).append(": ").append(throwableProxy.getMessage()).append("\n");
-         IThrowableProxy cause = throwableProxy.getCause();
-         int i = 0;
-         int limit = standardLineLimit;
-         if (cause == null)
+      }
+      return hasSqlState(ex, "08", "40");
+   }
+
+   /**
+    * @return true if any SQLException in the cause or next exception chains of ex has the
+    * given vendor error code
+    */
+   static boolean hasErrorCode(Throwable ex, int errorCode)
+   {
+      for (Throwable cause = ex; cause != null; cause = cause.getCause())
+      {
+         if (cause instanceof SQLException)
          {
-            limit = causeLineLimit;
+            for (SQLException next = (SQLException) cause; next != null; next = next.getNextException())
+            {
+               if (next.getErrorCode() == errorCode)
+               {
+                  return true;
+               }
+            }
          }
+      }
+      return false;
+   }
 
-         int totalLines = throwableProxy.getStackTraceElementProxyArray().length;
-         for (StackTraceElementProxy stackLine : throwableProxy.getStackTraceElementProxyArray())
+   /**
+    * @return true if any SQLException in the cause or next exception chains of ex has a
+    * SQLState starting with one of the given classes
+    */
+   static boolean hasSqlState(Throwable ex, String... classes)
+   {
+      for (Throwable cause = ex; cause != null; cause = cause.getCause())
+      {
+         if (cause instanceof SQLException)
          {
-            sb.append("\t").append(stackLine.toString()).append("\n");
-            i++;
-            totalLines--;
-            if (i >= limit)
+            for (SQLException next = (SQLException) cause; next != null; next = next.getNextException())
             {
-               if (totalLines > 0)
+               String state = next.getSQLState();
+               for (int i = 0; state != null && i < classes.length; i++)
                {
-                  sb.append("\t... ").append(totalLines).append(" lines omitted \n");
+                  if (state.startsWith(classes[i]))
+                  {
+                     return true;
+                  }
                }
-               break;
             }
          }
+      }
+      return false;
+   }
+
+   void push(DbLogRow row)
+   {
+      if (writers[shardOf(row)].offer(row))
+      {
+         return;
+      }
+
+      if (spillLog != null && spillLog.append(row))
+      {
+         metrics.spilled.increment();
+      }
+      else
+      {
+         metrics.droppedNewest.increment();
+         log.warn("Exceeding queue length.  LoggingEvent will be discarded" + row.message);
+      }
+   }
+
+   /**
+    * Events are sharded by logger name so that every event from one logger is written,
+    * in order, by the same writer.
+    */
+   int shardOf(DbLogRow row)
+   {
+      if (writers.length == 1)
+      {
+         return 0;
+      }
+
+      String loggerName = row.category;
+      int hash = loggerName == null ? 0 : loggerName.hashCode();
+      return (hash & Integer.MAX_VALUE) % writers.length;
+   }
+
+   /**
+    * This will attempt to load the META-INF/build-info.properties and use the build.buildtime property for the buildVersion
+    * The build-info.properties file is generated by gradle at build time.
+    */
+   private void loadBuildInfo()
+   {
+      buildVersion = "unknown";
+      try
+      {
+         Properties props = new Properties();
+         props.load(this.getClass().getClassLoader().getResourceAsStream("META-INF/build-info.properties"));
+         buildVersion = props.getProperty("build.buildtime");
+      }
+      catch (Exception e)
+      {
+         System.out.println("Warning buildVersion could not be found in LogbackDbAppender trying to use META-INF/build-info.properties");
+      }
+   }
+
+   private void buildInsertSql()
+   {
+      insertColumns = "(" + INSERT_COLUMNS + (coalesce ? COALESCE_COLUMNS : "") + ")";
+      insertValues = "(" + INSERT_VALUES + (coalesce ? COALESCE_VALUES : "") + ")";
+   }
+
+   /**
+    * @return the upsert of the given number of rows, at most rowsPerStatement, into the
+    * table, the same String instance every time so it is cheap to look up prepared
+    */
+   String insertSql(String table, int rows)
+   {
+      String[] byRows = insertSqlByTable.get(table);
+      if (byRows == null)
+      {
+         byRows = new String[rowsPerStatement + 1];
+         String[] existing = insertSqlByTable.putIfAbsent(table, byRows);
+         if (existing != null)
+         {
+            byRows = existing;
+         }
+      }
+
+      //racy but harmless, two writers may each build the same statement once
+      String sql = byRows[rows];
+      if (sql == null)
+      {
+         sql = buildInsertSql(table, rows);
+         byRows[rows] = sql;
+      }
+      return sql;
+   }
+
+   /**
+    * Forgets the upserts of a table that was dropped.
+    */
+   void forgetTable(String table)
+   {
+      insertSqlByTable.remove(table);
+   }
+
+   /**
+    * @return how many PreparedStatements a writer's connection keeps, the upserts of two
+    * tables so that yesterday's and today's day table do not evict each other
+    */
+   int maxCachedStatements()
+   {
+      return 2 * (rowsPerStatement + 1);
+   }
 
-         if (cause != null)
+   /**
+    * @return an upsert of the given number of rows
+    */
+   String buildInsertSql(String table, int rows)
+   {
+      StringBuilder sql = new StringBuilder(" INSERT INTO ").append(table).append(" ").append(insertColumns).append(" VALUES ");
+      for (int i = 0; i < rows; i++)
+      {
+         if (i > 0)
          {
-            buildStackTrace(sb, cause, ++level);
+            sql.append(", ");
          }
+         sql.append(insertValues);
+      }
+      return appendUpdate(sql).toString();
+   }
+
+   /**
+    * Appends the ON DUPLICATE KEY UPDATE clause every write strategy's upsert ends with.
+    */
+   StringBuilder appendUpdate(StringBuilder sql)
+   {
+      sql.append(" ON DUPLICATE KEY UPDATE "//
+            + "dayId=VALUES(dayId), level=VALUES(level), levelName=VALUES(levelName), category=VALUES(category), className=VALUES(className), " //
+            + "method=VALUES(method), lineNumber=VALUES(lineNumber), messageKey=VALUES(messageKey),message=VALUES(message), error=VALUES(error), " //
+            + "buildVersion=VALUES(buildVersion), machine=VALUES(machine), timestamp=VALUES(timestamp), lastModified=VALUES(lastModified)");
+      if (coalesce)
+      {
+         sql.append(", occurrences=VALUES(occurrences), firstTimestamp=VALUES(firstTimestamp)");
       }
+      return sql;
+   }
 
-      if (sb.length() > MAX_STACK_LENGTH)
+   private void buildWriteStrategy()
+   {
+      if ("multiRowValues".equalsIgnoreCase(writeStrategy))
+      {
+         batchWriteStrategy = new MultiRowValuesWriteStrategy(rowsPerStatement);
+      }
+      else if ("loadDataInfile".equalsIgnoreCase(writeStrategy))
+      {
+         batchWriteStrategy = new LoadDataInfileWriteStrategy();
+      }
+      else if ("jdbcBatch".equalsIgnoreCase(writeStrategy))
+      {
+         batchWriteStrategy = new JdbcBatchWriteStrategy();
+      }
+      else
       {
-         sb.delete(MAX_STACK_LENGTH, sb.length());
+         throw new RuntimeException("LogbackDbAppender not initialized - unknown writeStrategy " + writeStrategy + ", it must be jdbcBatch, multiRowValues or loadDataInfile\n" + getExampleUsage());
       }
+   }
+
+   /**
+    * Attempts to create a key from a given message.
+    * A key has a maximum length of MAX_MSGKEY_LENGTH
+    * @param message
+    * @return the shortest possible key or null if the message is null
+    */
+   String getMessageKey(String message)
+   {
+      return messageKeys.keyOf(message);
+   }
 
-      return sb;
+   synchronized int nextMessageNum()
+   {
+      messageNum++;
+      if (messageNum > maxMessagesPerDay)
+      {
+         messageNum = 1;
+      }
+      return messageNum;
    }
 
    public DataSource getDataSource()
@@ -503,6 +1260,516 @@ public class LogbackBatchDbAppender extends UnsynchronizedAppenderBase<ILoggingE
       this.maxQueue = maxQueue;
    }
 
+   public long getOffHeapQueueBytes()
+   {
+      return offHeapQueueBytes;
+   }
+
+   public void setOffHeapQueueBytes(long offHeapQueueBytes)
+   {
+      this.offHeapQueueBytes = offHeapQueueBytes;
+   }
+
+   public int getMaxBatchSize()
+   {
+      return maxBatchSize;
+   }
+
+   public void setMaxBatchSize(int maxBatchSize)
+   {
+      this.maxBatchSize = maxBatchSize;
+   }
+
+   public long getMaxLingerMs()
+   {
+      return maxLingerMs;
+   }
+
+   public void setMaxLingerMs(long maxLingerMs)
+   {
+      this.maxLingerMs = maxLingerMs;
+   }
+
+   public long getValidationIntervalMs()
+   {
+      return validationIntervalMs;
+   }
+
+   public void setValidationIntervalMs(long validationIntervalMs)
+   {
+      this.validationIntervalMs = validationIntervalMs;
+   }
+
+   public int getValidationTimeoutSeconds()
+   {
+      return validationTimeoutSeconds;
+   }
+
+   public void setValidationTimeoutSeconds(int validationTimeoutSeconds)
+   {
+      this.validationTimeoutSeconds = validationTimeoutSeconds;
+   }
+
+   public String getSpillDirectory()
+   {
+      return spillDirectory;
+   }
+
+   public void setSpillDirectory(String spillDirectory)
+   {
+      this.spillDirectory = spillDirectory;
+   }
+
+   public int getSpillSegmentBytes()
+   {
+      return spillSegmentBytes;
+   }
+
+   public void setSpillSegmentBytes(int spillSegmentBytes)
+   {
+      this.spillSegmentBytes = spillSegmentBytes;
+   }
+
+   public long getMaxSpillBytes()
+   {
+      return maxSpillBytes;
+   }
+
+   public void setMaxSpillBytes(long maxSpillBytes)
+   {
+      this.maxSpillBytes = maxSpillBytes;
+   }
+
+   public long getSpillReplayIntervalMs()
+   {
+      return spillReplayIntervalMs;
+   }
+
+   public void setSpillReplayIntervalMs(long spillReplayIntervalMs)
+   {
+      this.spillReplayIntervalMs = spillReplayIntervalMs;
+   }
+
+   public String getWriteStrategy()
+   {
+      return writeStrategy;
+   }
+
+   public void setWriteStrategy(String writeStrategy)
+   {
+      this.writeStrategy = writeStrategy;
+   }
+
+   public int getRowsPerStatement()
+   {
+      return rowsPerStatement;
+   }
+
+   public void setRowsPerStatement(int rowsPerStatement)
+   {
+      this.rowsPerStatement = rowsPerStatement;
+   }
+
+   public boolean isCoalesce()
+   {
+      return coalesce;
+   }
+
+   public void setCoalesce(boolean coalesce)
+   {
+      this.coalesce = coalesce;
+   }
+
+   public int getWriterThreads()
+   {
+      return writerThreads;
+   }
+
+   public void setWriterThreads(int writerThreads)
+   {
+      this.writerThreads = writerThreads;
+   }
+
+   public int getStackTraceCacheSize()
+   {
+      return stackTraceCacheSize;
+   }
+
+   public void setStackTraceCacheSize(int stackTraceCacheSize)
+   {
+      this.stackTraceCacheSize = stackTraceCacheSize;
+   }
+
+   public int getMessageKeyCacheSize()
+   {
+      return messageKeyCacheSize;
+   }
+
+   /**
+    * The number of message templates whose messageKey is cached.  When the cache is full
+    * it is cleared and refilled with the templates seen from then on, so a flood of
+    * messages with ids in them does not leave every later template uncached.
+    */
+   public void setMessageKeyCacheSize(int messageKeyCacheSize)
+   {
+      this.messageKeyCacheSize = messageKeyCacheSize;
+   }
+
+   /**
+    * @return the number of stack traces served from the stack trace cache
+    */
+   public long getStackTraceCacheHits()
+   {
+      return stackTraceFormatter == null ? 0 : stackTraceFormatter.getHits();
+   }
+
+   /**
+    * @return the number of stack traces that had to be formatted
+    */
+   public long getStackTraceCacheMisses()
+   {
+      return stackTraceFormatter == null ? 0 : stackTraceFormatter.getMisses();
+   }
+
+   public String getCallerDataPolicy()
+   {
+      return callerDataPolicy;
+   }
+
+   public void setCallerDataPolicy(String callerDataPolicy)
+   {
+      this.callerDataPolicy = callerDataPolicy;
+   }
+
+   public long getShutdownTimeoutMs()
+   {
+      return shutdownTimeoutMs;
+   }
+
+   public void setShutdownTimeoutMs(long shutdownTimeoutMs)
+   {
+      this.shutdownTimeoutMs = shutdownTimeoutMs;
+   }
+
+   public int getShutdownBatchSize()
+   {
+      return shutdownBatchSize;
+   }
+
+   public void setShutdownBatchSize(int shutdownBatchSize)
+   {
+      this.shutdownBatchSize = shutdownBatchSize;
+   }
+
+   public boolean isShutdownHook()
+   {
+      return shutdownHook;
+   }
+
+   /**
+    * Registers a JVM shutdown hook that stops this appender, for applications that do
+    * not stop the logback context themselves (see logback's shutdownHook element).
+    */
+   public void setShutdownHook(boolean shutdownHook)
+   {
+      this.shutdownHook = shutdownHook;
+   }
+
+   /**
+    * @return the number of queued events the last stop() wrote to the database
+    */
+   public long getShutdownFlushed()
+   {
+      return shutdownFlushed;
+   }
+
+   /**
+    * @return the number of queued events the last stop() moved to the spill log
+    */
+   public long getShutdownSpilled()
+   {
+      return shutdownSpilled;
+   }
+
+   /**
+    * @return the number of queued events the last stop() could neither write nor spill
+    */
+   public long getShutdownAbandoned()
+   {
+      return shutdownAbandoned;
+   }
+
+   public String getStackTraceTable()
+   {
+      return stackTraceTable;
+   }
+
+   /**
+    * Writes each distinct stack trace once, compressed, to this table and only its hash
+    * to the error column, see StackTraceStore for its columns.
+    */
+   public void setStackTraceTable(String stackTraceTable)
+   {
+      this.stackTraceTable = stackTraceTable;
+   }
+
+   public String getRollupTable()
+   {
+      return rollupTable;
+   }
+
+   /**
+    * Keeps per minute counts by level, category and messageKey in memory and adds them
+    * to this table every rollupFlushIntervalMs, see RollupCounters for its columns.
+    */
+   public void setRollupTable(String rollupTable)
+   {
+      this.rollupTable = rollupTable;
+   }
+
+   public long getRollupFlushIntervalMs()
+   {
+      return rollupFlushIntervalMs;
+   }
+
+   public void setRollupFlushIntervalMs(long rollupFlushIntervalMs)
+   {
+      this.rollupFlushIntervalMs = rollupFlushIntervalMs;
+   }
+
+   public String getPartitioning()
+   {
+      return partitioning;
+   }
+
+   /**
+    * none (the default) writes every row to tableName.  dailyTables writes each day's
+    * rows to tableName_yyyyMMdd, created LIKE tableName.  rangePartitions keeps writing
+    * to tableName and manages its MySQL RANGE (dayId) partitions, see DayPartitions.
+    */
+   public void setPartitioning(String partitioning)
+   {
+      this.partitioning = partitioning;
+   }
+
+   public int getRetentionDays()
+   {
+      return retentionDays;
+   }
+
+   public void setRetentionDays(int retentionDays)
+   {
+      this.retentionDays = retentionDays;
+   }
+
+   public long getPartitionMaintenanceIntervalMs()
+   {
+      return partitionMaintenanceIntervalMs;
+   }
+
+   public void setPartitionMaintenanceIntervalMs(long partitionMaintenanceIntervalMs)
+   {
+      this.partitionMaintenanceIntervalMs = partitionMaintenanceIntervalMs;
+   }
+
+   public String getWriterExecutor()
+   {
+      return writerExecutor;
+   }
+
+   /**
+    * platform (the default) runs each writer on a thread of its own, virtual on a virtual
+    * thread when running on Java 21 or later and the jar was built with -Pjava21Home.
+    * Virtual writers save threads when writerThreads is large, but they are pinned to
+    * their carrier while inside the synchronized nextMessageNum() and while a JDBC driver
+    * that locks with synchronized, as most do, is executing or committing a batch.
+    */
+   public void setWriterExecutor(String writerExecutor)
+   {
+      this.writerExecutor = writerExecutor;
+   }
+
+   public Executor getExecutor()
+   {
+      return executor;
+   }
+
+   /**
+    * Runs each writer loop (and the spill replayer) as a task of the given Executor instead
+    * of on a thread of its own.  Each task runs until the appender stops, so the Executor
+    * needs a thread per writer.
+    */
+   public void setExecutor(Executor executor)
+   {
+      this.executor = executor;
+   }
+
+   public boolean isJmxEnabled()
+   {
+      return jmxEnabled;
+   }
+
+   public void setJmxEnabled(boolean jmxEnabled)
+   {
+      this.jmxEnabled = jmxEnabled;
+   }
+
+   /**
+    * @return the appender's counters and latency histograms
+    */
+   public AppenderMetrics getMetrics()
+   {
+      return metrics;
+   }
+
+   public String getOverflowPolicy()
+   {
+      return overflowPolicy;
+   }
+
+   public void setOverflowPolicy(String overflowPolicy)
+   {
+      this.overflowPolicy = overflowPolicy;
+   }
+
+   public long getOverflowBlockMs()
+   {
+      return overflowBlockMs;
+   }
+
+   public void setOverflowBlockMs(long overflowBlockMs)
+   {
+      this.overflowBlockMs = overflowBlockMs;
+   }
+
+   /**
+    * @return the number of new events discarded because their queue was full and they could not be spilled
+    */
+   public long getDroppedNewest()
+   {
+      return metrics.droppedNewest.sum();
+   }
+
+   /**
+    * @return the number of queued events evicted by the dropOldest policy
+    */
+   public long getDroppedOldest()
+   {
+      return metrics.droppedOldest.sum();
+   }
+
+   /**
+    * @return the number of queued events below WARN evicted by the dropLowestLevel policy
+    */
+   public long getDroppedLowerLevel()
+   {
+      return metrics.droppedLowerLevel.sum();
+   }
+
+   /**
+    * @return the number of times a caller gave up waiting for room with the block policy
+    */
+   public long getBlockTimeouts()
+   {
+      return metrics.blockTimeouts.sum();
+   }
+
+   public String getRateLimits()
+   {
+      return rateLimits;
+   }
+
+   public void setRateLimits(String rateLimits)
+   {
+      this.rateLimits = rateLimits;
+   }
+
+   public int getRateLimitBurst()
+   {
+      return rateLimitBurst;
+   }
+
+   public void setRateLimitBurst(int rateLimitBurst)
+   {
+      this.rateLimitBurst = rateLimitBurst;
+   }
+
+   public long getRateLimitSummaryIntervalMs()
+   {
+      return rateLimitSummaryIntervalMs;
+   }
+
+   public void setRateLimitSummaryIntervalMs(long rateLimitSummaryIntervalMs)
+   {
+      this.rateLimitSummaryIntervalMs = rateLimitSummaryIntervalMs;
+   }
+
+   public int getMaxRetries()
+   {
+      return maxRetries;
+   }
+
+   /**
+    * How many times a batch that failed because the db is unavailable is retried before
+    * it is spilled, with a random backoff of up to retryBackoffMs doubled for each retry.
+    */
+   public void setMaxRetries(int maxRetries)
+   {
+      this.maxRetries = maxRetries;
+   }
+
+   public long getRetryBackoffMs()
+   {
+      return retryBackoffMs;
+   }
+
+   public void setRetryBackoffMs(long retryBackoffMs)
+   {
+      this.retryBackoffMs = retryBackoffMs;
+   }
+
+   public long getMaxRetryBackoffMs()
+   {
+      return maxRetryBackoffMs;
+   }
+
+   public void setMaxRetryBackoffMs(long maxRetryBackoffMs)
+   {
+      this.maxRetryBackoffMs = maxRetryBackoffMs;
+   }
+
+   public int getCircuitBreakerThreshold()
+   {
+      return circuitBreakerThreshold;
+   }
+
+   /**
+    * After this many consecutive failed attempts no writer or replayer uses the db for
+    * circuitBreakerOpenMs, then one batch probes it, see CircuitBreaker.
+    */
+   public void setCircuitBreakerThreshold(int circuitBreakerThreshold)
+   {
+      this.circuitBreakerThreshold = circuitBreakerThreshold;
+   }
+
+   public long getCircuitBreakerOpenMs()
+   {
+      return circuitBreakerOpenMs;
+   }
+
+   public void setCircuitBreakerOpenMs(long circuitBreakerOpenMs)
+   {
+      this.circuitBreakerOpenMs = circuitBreakerOpenMs;
+   }
+
+   /**
+    * @return the number of events that were not written because of the rate limits
+    */
+   public long getRateLimitedEvents()
+   {
+      return rateLimiter == null ? 0 : rateLimiter.getSuppressed();
+   }
+
    private String getExampleUsage()
    {
       String example = "EXAMPLE:\n" + //
@@ -517,8 +1784,37 @@ public class LogbackBatchDbAppender extends UnsynchronizedAppenderBase<ILoggingE
             "    <tableName>ServerMessage</tableName>\n" + //
             "    <service>loyalty</service>\n" + //
             "    <maxMessagesPerDay>1000</maxMessagesPerDay>\n" + //
+            "    <stackTraceCacheSize>1024</stackTraceCacheSize>\n" + //
+            "    <messageKeyCacheSize>10000</messageKeyCacheSize>\n" + //
+            "    <callerDataPolicy>level:WARN</callerDataPolicy>\n" + //
+            "    <maxBatchSize>1000</maxBatchSize>\n" + //
+            "    <maxLingerMs>200</maxLingerMs>\n" + //
+            "    <writerThreads>4</writerThreads>\n" + //
+            "    <writerExecutor>virtual</writerExecutor>\n" + //
+            "    <shutdownTimeoutMs>5000</shutdownTimeoutMs>\n" + //
+            "    <shutdownHook>true</shutdownHook>\n" + //
+            "    <partitioning>dailyTables</partitioning>\n" + //
+            "    <retentionDays>30</retentionDays>\n" + //
+            "    <rollupTable>ServerMessageRollup</rollupTable>\n" + //
+            "    <stackTraceTable>ServerMessageStackTrace</stackTraceTable>\n" + //
+            "    <offHeapQueueBytes>67108864</offHeapQueueBytes>\n" + //
+            "    <writeStrategy>multiRowValues</writeStrategy>\n" + //
+            "    <rowsPerStatement>100</rowsPerStatement>\n" + //
+            "    <spillDirectory>/var/spool/loyalty/log-spill</spillDirectory>\n" + //
+            "    <maxRetries>3</maxRetries>\n" + //
+            "    <retryBackoffMs>100</retryBackoffMs>\n" + //
+            "    <circuitBreakerThreshold>5</circuitBreakerThreshold>\n" + //
+            "    <circuitBreakerOpenMs>10000</circuitBreakerOpenMs>\n" + //
+            "    <overflowPolicy>dropLowestLevel</overflowPolicy>\n" + //
+            "    <rateLimits>ERROR=600,WARN=300,INFO=120</rateLimits>\n" + //
+            "    <rateLimitBurst>20</rateLimitBurst>\n" + //
             " </appender>\n\n" + //
-            " NOTE: if you use a different DataSource class parameter names may be different\n\n";
+            " NOTE: if you use a different DataSource class parameter names may be different\n" + //
+            " NOTE: metrics are registered with JMX as com.liftck.util.logging:type=LogbackBatchDbAppender,name=\"DB\" unless jmxEnabled is false\n" + //
+            " NOTE: writeStrategy loadDataInfile needs allowLoadLocalInfile=true on the url and the CREATE TEMPORARY TABLES privilege\n" + //
+            " NOTE: rateLimits are events per minute per messageKey, suppressed events are counted in a summary row every rateLimitSummaryIntervalMs\n" + //
+            " NOTE: coalesce needs two extra columns on the table:\n" + //
+            "    ALTER TABLE ServerMessage ADD COLUMN `occurrences` INT NOT NULL DEFAULT 1, ADD COLUMN `firstTimestamp` DATETIME(3) NULL\n\n";
       return example;
 
    }
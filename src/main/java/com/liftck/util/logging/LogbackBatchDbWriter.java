@@ -0,0 +1,376 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.qos.logback.core.db.DBHelper;
+
+/**
+ * One shard of a LogbackBatchDbAppender: a bounded queue plus the thread that drains it
+ * into the database over its own connection.  Events are only ever written by the
+ * writer that owns their shard so ordering within a shard is preserved.
+ */
+class LogbackBatchDbWriter implements Runnable
+{
+   final LogbackBatchDbAppender         appender;
+   final EventQueue<DbLogRow>           queue;
+   final String                         threadName;
+
+   final CachedConnection               connection;
+
+   static final int                     MAX_EVICTIONS    = 8;                              // evictions tried before giving up on an offer
+   static final long                    BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100); // how long a blocked producer waits between offers
+   static final long                    BREAKER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10); // min wait for the circuit breaker's probe
+
+   static final ThreadLocal<Boolean>    WRITER_THREAD    = new ThreadLocal<Boolean>();      // set while a thread runs a writer or replayer loop
+
+   volatile Thread                      thread     = null;
+   volatile boolean                     stopped    = false;
+   volatile boolean                     draining   = false;
+   volatile long                        drainDeadline;                                   // System.nanoTime() the drain must end by
+   volatile long                        flushed    = 0;                                  // rows written while draining
+   final CountDownLatch                 finished   = new CountDownLatch(1);
+
+   LogbackBatchDbWriter(LogbackBatchDbAppender appender, EventQueue<DbLogRow> queue, String threadName)
+   {
+      this.appender = appender;
+      this.queue = queue;
+      this.threadName = threadName;
+      this.connection = new CachedConnection(appender.dataSource, appender.validationIntervalMs, appender.validationTimeoutSeconds, appender.maxCachedStatements());
+   }
+
+   /**
+    * @return true if the current thread is running a writer or spill replayer loop, events
+    * it logs must not be written to the database or they would loop forever
+    */
+   static boolean isWriterThread()
+   {
+      return WRITER_THREAD.get() != null;
+   }
+
+   void start(Executor executor)
+   {
+      executor.execute(this);
+   }
+
+   /**
+    * Asks the writer to write whatever is queued in batches of up to shutdownBatchSize
+    * rows and then exit, giving up at the deadline.
+    */
+   void drain(long deadlineNanos)
+   {
+      drainDeadline = deadlineNanos;
+      draining = true;
+      Thread running = thread;
+      if (running != null)
+      {
+         LockSupport.unpark(running);
+      }
+   }
+
+   /**
+    * @return true if the writer loop has exited
+    */
+   boolean awaitFinished(long timeoutNanos)
+   {
+      return await(finished, timeoutNanos);
+   }
+
+   /**
+    * @return true if the latch reached zero within the timeout, an interrupt stops the
+    * wait but is kept
+    */
+   static boolean await(CountDownLatch latch, long timeoutNanos)
+   {
+      try
+      {
+         return latch.await(Math.max(timeoutNanos, 0), TimeUnit.NANOSECONDS);
+      }
+      catch (InterruptedException ex)
+      {
+         Thread.currentThread().interrupt();
+         return latch.getCount() == 0;
+      }
+   }
+
+   void stop()
+   {
+      stopped = true;
+      try
+      {
+         Thread running = thread;
+         if (running != null)
+         {
+            running.interrupt();
+         }
+      }
+      catch (Exception ex)
+      {
+
+      }
+
+      //close the raw connection to abort any statement the writer is blocked in,
+      //the writer thread cleans up its cached statements on its way out
+      DBHelper.closeConnection(connection.connection);
+   }
+
+   /**
+    * Queues the row, applying the appender's overflow policy if the queue is full.  Writer
+    * threads never wait under the block policy.
+    * @return false if the row was not queued and should be spilled or dropped
+    */
+   boolean offer(DbLogRow row)
+   {
+      if (queue.offer(row) || overflow(row))
+      {
+         //sampled here rather than by the writer, which misses peaks while it is inserting
+         appender.metrics.recordQueueDepth(queue.size());
+         return true;
+      }
+      return false;
+   }
+
+   /**
+    * Applies the appender's overflow policy to a row the full queue refused.
+    * @return true if the row was queued after all
+    */
+   boolean overflow(DbLogRow row)
+   {
+      switch (appender.overflow)
+      {
+         case DROP_OLDEST:
+         case DROP_LOWEST_LEVEL:
+            for (int attempt = 0; attempt < MAX_EVICTIONS; attempt++)
+            {
+               if (queue.evict(row) == null)
+               {
+                  return false;
+               }
+               (appender.overflow == OverflowPolicy.DROP_OLDEST ? appender.metrics.droppedOldest : appender.metrics.droppedLowerLevel).increment();
+
+               if (queue.offer(row))
+               {
+                  return true;
+               }
+            }
+            return false;
+
+         case BLOCK:
+            if (isWriterThread())
+            {
+               //a writer flushing rate limit summaries must not wait for a queue only the writers drain
+               return false;
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(appender.overflowBlockMs);
+            do
+            {
+               LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+               if (queue.offer(row))
+               {
+                  return true;
+               }
+            }
+            while (deadline - System.nanoTime() > 0 && !Thread.currentThread().isInterrupted());
+            appender.metrics.blockTimeouts.increment();
+            return false;
+
+         default:
+            return false;
+      }
+   }
+
+   @Override
+   public void run()
+   {
+      //stop() sets stopped before reading thread, so either it interrupts this thread or it is seen here
+      thread = Thread.currentThread();
+      WRITER_THREAD.set(Boolean.TRUE);
+      try
+      {
+         if (!stopped)
+         {
+            insertEvents();
+         }
+      }
+      finally
+      {
+         WRITER_THREAD.remove();
+         thread = null;
+         finished.countDown();
+      }
+   }
+
+   void insertEvents()
+   {
+      List<DbLogRow> rows = new ArrayList<DbLogRow>();
+
+      while (!Thread.currentThread().isInterrupted())
+      {
+         if (draining)
+         {
+            drain(rows);
+            break;
+         }
+
+         try
+         {
+            if (pop(rows).isEmpty())
+            {
+               continue;
+            }
+
+            while (rows.size() > 0)
+            {
+               write(rows);
+               rows.clear();
+               appender.flushRollups(connection, false);
+
+               //check to see if new events have arrived and process them
+               //immediately if so, unless stop() wants them in larger batches
+               if (!queue.isEmpty() && !draining)
+               {
+                  fill(rows);
+               }
+            }
+         }
+         catch (Exception ex)
+         {
+            failed(rows, ex);
+         }
+      }
+
+      connection.close();
+   }
+
+   /**
+    * Writes the queue in batches of up to shutdownBatchSize rows until it is empty, the
+    * drain deadline passes or a batch fails.  Whatever is left is spilled or counted as
+    * abandoned by LogbackBatchDbAppender.stop().
+    */
+   void drain(List<DbLogRow> rows)
+   {
+      while (!Thread.currentThread().isInterrupted() && drainDeadline - System.nanoTime() > 0)
+      {
+         rows.clear();
+         if (queue.drainTo(rows, appender.shutdownBatchSize) == 0)
+         {
+            break;
+         }
+
+         try
+         {
+            write(rows);
+            flushed += rows.size();
+         }
+         catch (Exception ex)
+         {
+            //no point retrying the database before the deadline, the rest is spilled by stop()
+            failed(rows, ex);
+            break;
+         }
+      }
+      rows.clear();
+   }
+
+   /**
+    * Writes the batch with the appender's retries once its circuit breaker lets this
+    * writer use the database, waiting for as long as the breaker is open.
+    * @throws SQLException the batch's last failure, or the breaker being open when
+    * stopping or draining, the list then only holds the rows that were not written
+    */
+   void write(List<DbLogRow> rows) throws SQLException
+   {
+      CircuitBreaker breaker = appender.circuitBreaker;
+      while (!breaker.allowRequest())
+      {
+         if (Thread.currentThread().isInterrupted() || draining)
+         {
+            throw new SQLException("The db circuit breaker is open", "08000");
+         }
+         LockSupport.parkNanos(this, Math.min(Math.max(breaker.remainingNanos(), BREAKER_PARK_NANOS), appender.writerParkNanos));
+      }
+      appender.insertWithRetry(connection, rows);
+   }
+
+   /**
+    * Spills the rows of a failed batch, or throws them away if they can not be retried,
+    * and clears the list.
+    */
+   void failed(List<DbLogRow> rows, Exception ex)
+   {
+      //the next batch will reconnect and prepare a fresh statement
+      connection.invalidate();
+
+      //once stopped the failure is more than likely stop() closing the connection
+      if ((stopped || !LogbackBatchDbAppender.isDataError(ex)) && appender.spill(rows))
+      {
+         appender.log.warn("Exception committing a batch of log events to the db.  These log events have been spilled to disk and will be retried.", ex);
+      }
+      else
+      {
+         appender.metrics.failed.add(rows.size());
+         appender.log.warn("Exception committing a batch of log events to the db.  These log events will be thrown away.", ex);
+      }
+      rows.clear();
+   }
+
+   /**
+    * Parks the writer thread until events are available and then fills the given list
+    * with the next batch.
+    * @param rows the list to fill, it is cleared first
+    * @return the given list, empty only if the writer thread was interrupted or is draining
+    */
+   List<DbLogRow> pop(List<DbLogRow> rows)
+   {
+      rows.clear();
+      while (queue.isEmpty())
+      {
+         if (Thread.currentThread().isInterrupted() || draining)
+         {
+            return rows;
+         }
+         queue.await(appender.writerParkNanos);
+         appender.flushRateLimitSummary(false);
+         appender.flushRollups(connection, false);
+      }
+
+      return fill(rows);
+   }
+
+   /**
+    * Moves queued events into the list until it holds maxBatchSize events or the first
+    * event in the list is maxLingerMs old, whichever comes first.  While lingering the
+    * writer is only woken once enough events are queued to complete the batch.
+    * @param rows the list to fill
+    * @return the given list
+    */
+   List<DbLogRow> fill(List<DbLogRow> rows)
+   {
+      int maxBatchSize = appender.maxBatchSize;
+      queue.drainTo(rows, maxBatchSize - rows.size());
+
+      if (appender.maxLingerMs > 0 && rows.size() > 0 && !draining)
+      {
+         long deadline = rows.get(0).timeStamp + appender.maxLingerMs;
+         long remaining;
+         while (rows.size() < maxBatchSize && (remaining = deadline - System.currentTimeMillis()) > 0)
+         {
+            if (Thread.currentThread().isInterrupted() || draining)
+            {
+               break;
+            }
+            queue.await(TimeUnit.MILLISECONDS.toNanos(remaining), maxBatchSize - rows.size());
+            queue.drainTo(rows, maxBatchSize - rows.size());
+         }
+      }
+      return rows;
+   }
+}
@@ -6,16 +6,16 @@ package com.liftck.util.logging;
 import java.net.InetAddress;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.sql.Timestamp;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 
 import javax.sql.DataSource;
 
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.IThrowableProxy;
-import ch.qos.logback.classic.spi.StackTraceElementProxy;
 import ch.qos.logback.core.UnsynchronizedAppenderBase;
 import ch.qos.logback.core.db.DBHelper;
 
@@ -34,11 +34,23 @@ public class LogbackDbAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
    private String           tableName;
    private String           service;
    private int              maxMessagesPerDay = 1000;
+   private int              stackTraceCacheSize = 1024;                      // number of formatted stack traces to cache, 0 to disable
+   private int              messageKeyCacheSize = MessageKeys.DEFAULT_CACHE_SIZE; // number of message templates whose key is cached, 0 to disable
+   private boolean          groupCommit       = false;                       // insert the rows of concurrent callers in one transaction
+   private long             groupCommitWindowMs = 5;                         // how long a group's leader waits for others to join
+   private int              maxGroupSize      = 100;
+   private boolean          jmxEnabled        = true;                        // register the metrics with the platform MBeanServer
+   private String           callerDataPolicy  = "always";                    // always, never, level:WARN or sampled:100
 
    // internal members
    private String           insertSql;
    private int              messageNum        = 0;
-   private SimpleDateFormat dayIdFormat       = new SimpleDateFormat("yyyyMMdd");
+   private DayCache         dayCache          = new DayCache();
+   private MessageKeys      messageKeys;
+   private StackTraceFormatter stackTraceFormatter;
+   private GroupCommitter   groupCommitter;
+   private CallerDataPolicy callerData;
+   private final AppenderMetrics metrics      = new AppenderMetrics();
    private String           buildVersion;
    private String           machine;
    private String           machineIp;
@@ -63,6 +75,18 @@ public class LogbackDbAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
       {
          throw new RuntimeException("LogbackDbAppender not initialized - You must specify a service\n" + getExampleUsage());
       }
+      try
+      {
+         callerData = CallerDataPolicy.parse(callerDataPolicy);
+      }
+      catch (IllegalArgumentException ex)
+      {
+         throw new RuntimeException("LogbackDbAppender not initialized - " + ex.getMessage() + "\n" + getExampleUsage());
+      }
+      if (groupCommit && maxGroupSize < 1)
+      {
+         throw new RuntimeException("LogbackDbAppender not initialized - maxGroupSize must be at least 1\n" + getExampleUsage());
+      }
 
       loadBuildInfo();
 
@@ -80,6 +104,13 @@ public class LogbackDbAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
       }
 
       buildInsertSql();
+      stackTraceFormatter = new StackTraceFormatter(MAX_STACK_LENGTH, stackTraceCacheSize);
+      messageKeys = new MessageKeys(MAX_MSGKEY_LENGTH, messageKeyCacheSize);
+      groupCommitter = groupCommit ? new GroupCommitter(this, groupCommitWindowMs, maxGroupSize) : null;
+      if (jmxEnabled)
+      {
+         metrics.register(getClass().getSimpleName(), getName() != null ? getName() : service);
+      }
       super.start();
    }
 
@@ -117,6 +148,7 @@ public class LogbackDbAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
    @Override
    public void stop()
    {
+      metrics.unregister();
       super.stop();
    }
 
@@ -132,6 +164,67 @@ public class LogbackDbAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
 
    @Override
    protected void append(ILoggingEvent evt)
+   {
+      metrics.appended.increment();
+      long start = System.nanoTime();
+      try
+      {
+         DbLogRow row = toRow(evt);
+         if (groupCommitter != null)
+         {
+            groupCommitter.submit(row);
+         }
+         else
+         {
+            insertRows(Collections.singletonList(row));
+         }
+      }
+      catch (Throwable t)
+      {
+         metrics.failed.increment();
+         System.out.println("Error appending event in LogbackDbAppender");
+         t.printStackTrace(System.out);
+      }
+      finally
+      {
+         metrics.appendLatency.record(System.nanoTime() - start);
+      }
+
+   }
+
+   DbLogRow toRow(ILoggingEvent evt)
+   {
+      String msg = evt.getMessage();
+      if (msg.length() >= MAX_MSG_LENGTH)
+      {
+         msg = msg.substring(0, MAX_MSG_LENGTH);
+      }
+
+      String stackTrace = "";
+      IThrowableProxy throwableProxy = evt.getThrowableProxy();
+      if (throwableProxy != null)
+      {
+         stackTrace = stackTraceFormatter.format(throwableProxy);
+      }
+
+      String className = "unknown";
+      String methodName = "unknown";
+      int lineNumber = 0;
+      StackTraceElement ste = callerData.callerOf(evt);
+      if (ste != null)
+      {
+         className = ste.getClassName();
+         methodName = ste.getMethodName();
+         lineNumber = ste.getLineNumber();
+      }
+
+      return new DbLogRow(evt.getTimeStamp(), evt.getLevel().toInt(), evt.getLevel().toString(), evt.getLoggerName(), className, methodName, lineNumber, msg, stackTrace);
+   }
+
+   /**
+    * Inserts the rows in one transaction on a connection of its own.
+    */
+   void insertRows(List<DbLogRow> rows) throws SQLException
    {
       Connection connection = null;
       PreparedStatement statement = null;
@@ -145,140 +238,73 @@ public class LogbackDbAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
 
             statement = connection.prepareStatement(insertSql);
 
-            Timestamp ts = new Timestamp(evt.getTimeStamp());
-            Calendar cal = Calendar.getInstance();
-            cal.setTime(ts);
-
-            String msg = evt.getMessage();
-            if (msg.length() >= MAX_MSG_LENGTH)
+            long start = System.nanoTime();
+            if (rows.size() == 1)
             {
-               msg = msg.substring(0, MAX_MSG_LENGTH);
-            }
+               populateStatement(rows.get(0), statement);
 
-            String stackTrace = "";
-            IThrowableProxy throwableProxy = evt.getThrowableProxy();
-            if (throwableProxy != null)
-            {
-               stackTrace = buildStackTrace(new StringBuilder(), throwableProxy, 1).toString();
+               int updateCount = statement.executeUpdate();
+               if (updateCount != 1)
+               {
+                  // Failed to insert loggingEvent
+                  // Do nothing for now, but could write an error to standard out or err
+               }
             }
-
-            String className = "unknown";
-            String methodName = "unknown";
-            int lineNumber = 0;
-            if (evt.getCallerData() != null && evt.getCallerData().length > 0)
+            else
             {
-               StackTraceElement ste = evt.getCallerData()[0];
-               className = ste.getClassName();
-               methodName = ste.getMethodName();
-               lineNumber = ste.getLineNumber();
-            }
-
-            int i = 1;
-
-            // dayId, dayKey, service, level, levelName, category, className, method, 
-            // messageKey, message, error, machine, machineIp, messageNum, timestamp, lastModified
-            int dayId = Integer.parseInt(dayIdFormat.format(ts));
-            statement.setInt(i++, dayId);
-
-            int dayKey = cal.get(Calendar.DAY_OF_WEEK);
-            statement.setInt(i++, dayKey);
-
-            statement.setString(i++, service); // service
-
-            statement.setInt(i++, evt.getLevel().toInt());
-            statement.setString(i++, evt.getLevel().toString());
-
-            statement.setString(i++, evt.getLoggerName()); // category
-            statement.setString(i++, className); // className
-            statement.setString(i++, methodName); // method
-            statement.setInt(i++, lineNumber); // lineNumber
-
-            statement.setString(i++, getMessageKey(msg)); // messageKey
-            statement.setString(i++, msg); // message
-
-            statement.setString(i++, stackTrace); // error
-
-            statement.setString(i++, buildVersion); // buildVersion
-            statement.setString(i++, machine); // machine
-            statement.setString(i++, machineIp); // machineIp
-
-            statement.setInt(i++, nextMessageNum()); // messageNum
-            statement.setTimestamp(i++, ts); // timestamp
-            statement.setLong(i++, evt.getTimeStamp()); // lastModified
-
-            int updateCount = statement.executeUpdate();
-            if (updateCount != 1)
-            {
-               // Failed to insert loggingEvent
-               // Do nothing for now, but could write an error to standard out or err
+               for (DbLogRow row : rows)
+               {
+                  populateStatement(row, statement);
+                  statement.addBatch();
+               }
+               statement.executeBatch();
             }
 
+            long executed = System.nanoTime();
             connection.commit();
+            metrics.recordBatch(rows, executed - start, System.nanoTime() - executed);
          }
 
       }
-      catch (Throwable t)
-      {
-         System.out.println("Error appending event in LogbackDbAppender");
-         t.printStackTrace(System.out);
-      }
       finally
       {
          DBHelper.closeStatement(statement);
          DBHelper.closeConnection(connection);
       }
-
    }
 
-   private StringBuilder buildStackTrace(StringBuilder sb, IThrowableProxy throwableProxy, int level)
+   private void populateStatement(DbLogRow row, PreparedStatement statement) throws SQLException
    {
-      int maxLevel = 5;
-      int standardLineLimit = 2;
-      int causeLineLimit = 12;
+      int i = 1;
 
-      if (throwableProxy != null && level < maxLevel)
-      {
-         if (level > 1)
-         {
-            sb.append("Caused by: ");
-         }
-         sb.append(throwableProxy.getClassName()).append(": ").append(throwableProxy.getMessage()).append("\n");
-         IThrowableProxy cause = throwableProxy.getCause();
-         int i = 0;
-         int limit = standardLineLimit;
-         if (cause == null)
-         {
-            limit = causeLineLimit;
-         }
+      // dayId, dayKey, service, level, levelName, category, className, method, 
+      // messageKey, message, error, machine, machineIp, messageNum, timestamp, lastModified
+      DayCache.Day day = dayCache.dayOf(row.timeStamp);
+      statement.setInt(i++, day.dayId);
+      statement.setInt(i++, day.dayKey);
 
-         int totalLines = throwableProxy.getStackTraceElementProxyArray().length;
-         for (StackTraceElementProxy stackLine : throwableProxy.getStackTraceElementProxyArray())
-         {
-            sb.append("\t").append(stackLine.toString()).append("\n");
-            i++;
-            totalLines--;
-            if (i >= limit)
-            {
-               if (totalLines > 0)
-               {
-                  sb.append("\t... ").append(totalLines).append(" lines omitted \n");
-               }
-               break;
-            }
-         }
+      statement.setString(i++, service); // service
 
-         if (cause != null)
-         {
-            buildStackTrace(sb, cause, ++level);
-         }
-      }
+      statement.setInt(i++, row.level);
+      statement.setString(i++, row.levelName);
 
-      if (sb.length() > MAX_STACK_LENGTH)
-      {
-         sb.delete(MAX_STACK_LENGTH, sb.length());
-      }
+      statement.setString(i++, row.category); // category
+      statement.setString(i++, row.className); // className
+      statement.setString(i++, row.method); // method
+      statement.setInt(i++, row.lineNumber); // lineNumber
+
+      statement.setString(i++, getMessageKey(row.message)); // messageKey
+      statement.setString(i++, row.message); // message
+
+      statement.setString(i++, row.error); // error
+
+      statement.setString(i++, buildVersion); // buildVersion
+      statement.setString(i++, machine); // machine
+      statement.setString(i++, machineIp); // machineIp
 
-      return sb;
+      statement.setInt(i++, nextMessageNum()); // messageNum
+      statement.setTimestamp(i++, new Timestamp(row.timeStamp)); // timestamp
+      statement.setLong(i++, row.timeStamp); // lastModified
    }
 
    /**
@@ -289,45 +315,7 @@ public class LogbackDbAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
     */
    private String getMessageKey(String message)
    {
-      int MIN = 4;
-      int i = -1;
-      if (message == null)
-         return null;
-
-      if (message.length() >= MAX_MSGKEY_LENGTH)
-      {
-         message = message.substring(0, MAX_MSGKEY_LENGTH);
-      }
-
-      int endOfKeyIndex = message.length();
-      endOfKeyIndex = findMessageKeyIndex(endOfKeyIndex, message, MIN, ". ");
-      endOfKeyIndex = findMessageKeyIndex(endOfKeyIndex, message, MIN, "=");
-      endOfKeyIndex = findMessageKeyIndex(endOfKeyIndex, message, MIN, ": ");
-      endOfKeyIndex = findMessageKeyIndex(endOfKeyIndex, message, MIN, "-");
-      endOfKeyIndex = findMessageKeyIndex(endOfKeyIndex, message, MIN, "\n");
-      endOfKeyIndex = findMessageKeyIndex(endOfKeyIndex, message, MIN, "\t");
-      endOfKeyIndex = findMessageKeyIndex(endOfKeyIndex, message, MIN, "**");
-
-      if (endOfKeyIndex > 0)
-      {
-         return message.substring(0, endOfKeyIndex);
-      }
-      else
-      {
-         return message;
-      }
-
-   }
-   
-   private int findMessageKeyIndex(int oldIndex, String message, int minIndex, String character) {
-      
-      int i = message.indexOf(character);
-      if (oldIndex > i && i > minIndex)
-      {
-         oldIndex = i;
-      }
-
-      return oldIndex;
+      return messageKeys.keyOf(message);
    }
 
    public DataSource getDataSource()
@@ -370,6 +358,110 @@ public class LogbackDbAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
       this.maxMessagesPerDay = maxMessagesPerDay;
    }
 
+   public boolean isGroupCommit()
+   {
+      return groupCommit;
+   }
+
+   public void setGroupCommit(boolean groupCommit)
+   {
+      this.groupCommit = groupCommit;
+   }
+
+   public long getGroupCommitWindowMs()
+   {
+      return groupCommitWindowMs;
+   }
+
+   /**
+    * How long a group's leader waits for other callers to join.  The wait is skipped, so
+    * a caller only waits for its own insert, while the database is idle and the previous
+    * group had a single row.  Under concurrent load each caller may wait up to this long
+    * on top of its group's insert.
+    */
+   public void setGroupCommitWindowMs(long groupCommitWindowMs)
+   {
+      this.groupCommitWindowMs = groupCommitWindowMs;
+   }
+
+   public int getMaxGroupSize()
+   {
+      return maxGroupSize;
+   }
+
+   public void setMaxGroupSize(int maxGroupSize)
+   {
+      this.maxGroupSize = maxGroupSize;
+   }
+
+   public String getCallerDataPolicy()
+   {
+      return callerDataPolicy;
+   }
+
+   public void setCallerDataPolicy(String callerDataPolicy)
+   {
+      this.callerDataPolicy = callerDataPolicy;
+   }
+
+   public boolean isJmxEnabled()
+   {
+      return jmxEnabled;
+   }
+
+   public void setJmxEnabled(boolean jmxEnabled)
+   {
+      this.jmxEnabled = jmxEnabled;
+   }
+
+   /**
+    * @return the appender's counters and latency histograms
+    */
+   public AppenderMetrics getMetrics()
+   {
+      return metrics;
+   }
+
+   public int getStackTraceCacheSize()
+   {
+      return stackTraceCacheSize;
+   }
+
+   public void setStackTraceCacheSize(int stackTraceCacheSize)
+   {
+      this.stackTraceCacheSize = stackTraceCacheSize;
+   }
+
+   public int getMessageKeyCacheSize()
+   {
+      return messageKeyCacheSize;
+   }
+
+   /**
+    * The number of message templates whose messageKey is cached.  When the cache is full
+    * it is cleared and refilled with the templates seen from then on.
+    */
+   public void setMessageKeyCacheSize(int messageKeyCacheSize)
+   {
+      this.messageKeyCacheSize = messageKeyCacheSize;
+   }
+
+   /**
+    * @return the number of stack traces served from the stack trace cache
+    */
+   public long getStackTraceCacheHits()
+   {
+      return stackTraceFormatter == null ? 0 : stackTraceFormatter.getHits();
+   }
+
+   /**
+    * @return the number of stack traces that had to be formatted
+    */
+   public long getStackTraceCacheMisses()
+   {
+      return stackTraceFormatter == null ? 0 : stackTraceFormatter.getMisses();
+   }
+
    private String getExampleUsage()
    {
       String example = "EXAMPLE:\n" + //
@@ -384,8 +476,14 @@ public class LogbackDbAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
             "    <tableName>ServerMessage</tableName>\n" + //
             "    <service>loyalty</service>\n" + //
             "    <maxMessagesPerDay>1000</maxMessagesPerDay>\n" + //
+            "    <stackTraceCacheSize>1024</stackTraceCacheSize>\n" + //
+            "    <messageKeyCacheSize>10000</messageKeyCacheSize>\n" + //
+            "    <callerDataPolicy>level:WARN</callerDataPolicy>\n" + //
+            "    <groupCommit>true</groupCommit>\n" + //
+            "    <groupCommitWindowMs>5</groupCommitWindowMs>\n" + //
             " </appender>\n\n" + //
-            " NOTE: if you use a different DataSource class parameter names may be different\n\n";
+            " NOTE: if you use a different DataSource class parameter names may be different\n" + //
+            " NOTE: metrics are registered with JMX as com.liftck.util.logging:type=LogbackDbAppender,name=\"DB\" unless jmxEnabled is false\n\n";
       return example;
 
    }
@@ -0,0 +1,118 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Derives the messageKey column from a message template: the start of the message up to
+ * the earliest of the delimiters ". ", "=", ": ", "-", "\n", "\t" or "**", limited to
+ * maxKeyLength characters.  Only the first occurrence of each delimiter counts and it
+ * only ends the key if it is past the first MIN_KEY_INDEX characters.
+ *
+ * Keys are cached by template in a bounded, lock free table.  Once maxSize templates
+ * have been cached the table is cleared and starts over, so messages with ids in them
+ * can not fill it for good and leave every later template uncached.  0 disables it.
+ */
+class MessageKeys
+{
+   static final int                        MIN_KEY_INDEX = 4;
+   static final int                        DEFAULT_CACHE_SIZE = 10000;
+
+   static final int                        PERIOD_SPACE  = 1;
+   static final int                        EQUALS        = 1 << 1;
+   static final int                        COLON_SPACE   = 1 << 2;
+   static final int                        DASH          = 1 << 3;
+   static final int                        NEWLINE       = 1 << 4;
+   static final int                        TAB           = 1 << 5;
+   static final int                        STARS         = 1 << 6;
+
+   final int                               maxKeyLength;
+   final int                               maxSize;
+   final ConcurrentHashMap<String, String> cache;
+
+   MessageKeys(int maxKeyLength, int maxSize)
+   {
+      this.maxKeyLength = maxKeyLength;
+      this.maxSize = maxSize;
+      this.cache = new ConcurrentHashMap<String, String>(Math.min(maxSize, 1024));
+   }
+
+   String keyOf(String message)
+   {
+      if (message == null)
+      {
+         return null;
+      }
+
+      String key = cache.get(message);
+      if (key == null)
+      {
+         key = extract(message, maxKeyLength);
+         if (maxSize > 0)
+         {
+            if (cache.size() >= maxSize)
+            {
+               cache.clear();
+            }
+            cache.putIfAbsent(message, key);
+         }
+      }
+      return key;
+   }
+
+   /**
+    * Finds the end of the key in one pass over the first maxKeyLength characters.
+    * Scanning left to right, the first delimiter found past MIN_KEY_INDEX whose
+    * first occurrence it is ends the key, a delimiter that already occurred at or
+    * before MIN_KEY_INDEX can not end it.
+    */
+   static String extract(String message, int maxKeyLength)
+   {
+      int length = message.length() >= maxKeyLength ? maxKeyLength : message.length();
+      int seen = 0;
+      for (int i = 0; i < length; i++)
+      {
+         int delimiter;
+         char c = message.charAt(i);
+         char next = i + 1 < length ? message.charAt(i + 1) : 0;
+         switch (c)
+         {
+            case '.':
+               delimiter = next == ' ' ? PERIOD_SPACE : 0;
+               break;
+            case '=':
+               delimiter = EQUALS;
+               break;
+            case ':':
+               delimiter = next == ' ' ? COLON_SPACE : 0;
+               break;
+            case '-':
+               delimiter = DASH;
+               break;
+            case '\n':
+               delimiter = NEWLINE;
+               break;
+            case '\t':
+               delimiter = TAB;
+               break;
+            case '*':
+               delimiter = next == '*' ? STARS : 0;
+               break;
+            default:
+               delimiter = 0;
+         }
+
+         if (delimiter != 0)
+         {
+            if (i > MIN_KEY_INDEX && (seen & delimiter) == 0)
+            {
+               return message.substring(0, i);
+            }
+            seen |= delimiter;
+         }
+      }
+      return length == message.length() ? message : message.substring(0, length);
+   }
+}
@@ -0,0 +1,47 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Sends rows as hand built INSERT ... VALUES (...), (...), ... ON DUPLICATE KEY UPDATE
+ * statements of up to rowsPerStatement rows each, independent of any driver flags.
+ *
+ * Full statements reuse one cached PreparedStatement, the remainder of a batch uses a
+ * statement sized to fit which is cached as well, so at most rowsPerStatement distinct
+ * statements are ever prepared per connection and table.
+ */
+class MultiRowValuesWriteStrategy implements BatchWriteStrategy
+{
+   final int rowsPerStatement;
+
+   MultiRowValuesWriteStrategy(int rowsPerStatement)
+   {
+      this.rowsPerStatement = rowsPerStatement;
+   }
+
+   @Override
+   public void write(LogbackBatchDbAppender appender, CachedConnection connection, String table, List<DbLogRow> rows) throws SQLException
+   {
+      int size = rows.size();
+      int start = 0;
+      while (start < size)
+      {
+         int count = Math.min(rowsPerStatement, size - start);
+         PreparedStatement statement = connection.prepare(appender.insertSql(table, count));
+
+         int index = 1;
+         for (int i = start; i < start + count; i++)
+         {
+            index = appender.populateStatement(rows.get(i), statement, index);
+         }
+         statement.executeUpdate();
+
+         start += count;
+      }
+   }
+}
@@ -0,0 +1,298 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded multi-producer / single-consumer queue of DbLogRows that keeps the queued
+ * rows serialized in a preallocated direct ByteBuffer, so a backlog lives off heap and
+ * never reaches the old generation.
+ *
+ * The arena is divided into fixed size blocks.  A producer claims the blocks its encoded
+ * row needs with a CAS on the tail, UTF-8 encodes the row straight into them and then
+ * publishes the record by storing its block count in the record's first slot of the
+ * published array (the store that makes the arena bytes visible to the consumer).  A
+ * record never wraps, when it does not fit before the end of the arena the remaining
+ * blocks are claimed as padding.
+ *
+ * Rows are decoded back into DbLogRows on the consumer thread as they are drained.
+ */
+class OffHeapRowRing extends EventQueue<DbLogRow>
+{
+   static final int         BLOCK_SIZE = 64;
+
+   final ByteBuffer         arena;
+   final int                blocks;
+   final AtomicIntegerArray published;                    // >0 record block count, <0 padding block count, 0 not published
+
+   final AtomicLong         tail       = new AtomicLong(0); // in blocks
+   volatile long            head       = 0;                 // in blocks, only written by the consumer
+
+   final AtomicLong         offered    = new AtomicLong(0); // rows published
+   volatile long            consumed   = 0;                 // rows polled, only written by the consumer
+
+   final ByteBuffer         reader;                         // consumer side view of the arena
+   byte[]                   scratch    = new byte[1024];    // consumer side decode buffer
+
+   OffHeapRowRing(int capacityBytes)
+   {
+      if (capacityBytes < BLOCK_SIZE)
+      {
+         throw new IllegalArgumentException("OffHeapRowRing capacity must be at least " + BLOCK_SIZE + " bytes but was " + capacityBytes);
+      }
+
+      this.blocks = capacityBytes / BLOCK_SIZE;
+      this.arena = ByteBuffer.allocateDirect(blocks * BLOCK_SIZE);
+      this.reader = arena.duplicate();
+      this.published = new AtomicIntegerArray(blocks);
+   }
+
+   @Override
+   boolean offer(DbLogRow row)
+   {
+      int length = 8 + 4 + 4 + 4 + 8 //timeStamp, level, lineNumber, occurrences, firstTimeStamp
+            + encodedLength(row.levelName) + encodedLength(row.category) + encodedLength(row.className) //
+            + encodedLength(row.method) + encodedLength(row.message) + encodedLength(row.error);
+      int needed = (4 + length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+      if (needed > blocks)
+      {
+         return false;
+      }
+
+      long pos;
+      int start;
+      int padding;
+      while (true)
+      {
+         pos = tail.get();
+         start = (int) (pos % blocks);
+         padding = start + needed > blocks ? blocks - start : 0;
+         if (pos + padding + needed - head > blocks)
+         {
+            return false;
+         }
+         if (tail.compareAndSet(pos, pos + padding + needed))
+         {
+            break;
+         }
+      }
+
+      if (padding > 0)
+      {
+         published.set(start, -padding);
+         start = 0;
+      }
+
+      int offset = start * BLOCK_SIZE;
+      arena.putInt(offset, length);
+      offset += 4;
+      arena.putLong(offset, row.timeStamp);
+      offset += 8;
+      arena.putInt(offset, row.level);
+      offset += 4;
+      offset = putString(offset, row.levelName);
+      offset = putString(offset, row.category);
+      offset = putString(offset, row.className);
+      offset = putString(offset, row.method);
+      arena.putInt(offset, row.lineNumber);
+      offset += 4;
+      offset = putString(offset, row.message);
+      offset = putString(offset, row.error);
+      arena.putInt(offset, row.occurrences);
+      offset += 4;
+      arena.putLong(offset, row.firstTimeStamp);
+
+      published.set(start, needed);
+      signal(offered.incrementAndGet() - consumed);
+      return true;
+   }
+
+   @Override
+   DbLogRow poll()
+   {
+      while (true)
+      {
+         long pos = head;
+         int index = (int) (pos % blocks);
+         int count = published.get(index);
+         if (count == 0)
+         {
+            return null;
+         }
+
+         if (count < 0)
+         {
+            //padding up to the end of the arena, the record is at the start
+            published.lazySet(index, 0);
+            head = pos - count;
+            continue;
+         }
+
+         int offset = index * BLOCK_SIZE + 4;
+         long timeStamp = arena.getLong(offset);
+         offset += 8;
+         int level = arena.getInt(offset);
+         offset += 4;
+         String levelName = getString(offset);
+         offset += encodedLength(arena.getInt(offset));
+         String category = getString(offset);
+         offset += encodedLength(arena.getInt(offset));
+         String className = getString(offset);
+         offset += encodedLength(arena.getInt(offset));
+         String method = getString(offset);
+         offset += encodedLength(arena.getInt(offset));
+         int lineNumber = arena.getInt(offset);
+         offset += 4;
+         String message = getString(offset);
+         offset += encodedLength(arena.getInt(offset));
+         String error = getString(offset);
+         offset += encodedLength(arena.getInt(offset));
+         int occurrences = arena.getInt(offset);
+         offset += 4;
+         long firstTimeStamp = arena.getLong(offset);
+
+         published.lazySet(index, 0);
+         consumed = consumed + 1;
+         head = pos + count;
+         return new DbLogRow(timeStamp, level, levelName, category, className, method, lineNumber, message, error, occurrences, firstTimeStamp);
+      }
+   }
+
+   @Override
+   boolean isEmpty()
+   {
+      return published.get((int) (head % blocks)) == 0;
+   }
+
+   @Override
+   int size()
+   {
+      long size = offered.get() - consumed;
+      return size < 0 ? 0 : (int) size;
+   }
+
+   @Override
+   int capacity()
+   {
+      return blocks;
+   }
+
+   /**
+    * @return the number of bytes the string takes in the arena, including its length prefix
+    */
+   static int encodedLength(String value)
+   {
+      if (value == null)
+      {
+         return 4;
+      }
+
+      int length = 4;
+      int chars = value.length();
+      for (int i = 0; i < chars; i++)
+      {
+         char c = value.charAt(i);
+         if (c < 0x80)
+         {
+            length += 1;
+         }
+         else if (c < 0x800)
+         {
+            length += 2;
+         }
+         else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(value.charAt(i + 1)))
+         {
+            length += 4;
+            i++;
+         }
+         else
+         {
+            length += 3;
+         }
+      }
+      return length;
+   }
+
+   /**
+    * @return the number of bytes taken by a string whose length prefix is the given value
+    */
+   static int encodedLength(int prefix)
+   {
+      return 4 + Math.max(prefix, 0);
+   }
+
+   /**
+    * UTF-8 encodes the string into the arena at the offset without any intermediate
+    * byte[], unpaired surrogates are written as the replacement character.
+    * @return the offset following the string
+    */
+   int putString(int offset, String value)
+   {
+      if (value == null)
+      {
+         arena.putInt(offset, -1);
+         return offset + 4;
+      }
+
+      int start = offset;
+      offset += 4;
+      int chars = value.length();
+      for (int i = 0; i < chars; i++)
+      {
+         char c = value.charAt(i);
+         if (c < 0x80)
+         {
+            arena.put(offset++, (byte) c);
+         }
+         else if (c < 0x800)
+         {
+            arena.put(offset++, (byte) (0xC0 | (c >> 6)));
+            arena.put(offset++, (byte) (0x80 | (c & 0x3F)));
+         }
+         else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(value.charAt(i + 1)))
+         {
+            int cp = Character.toCodePoint(c, value.charAt(++i));
+            arena.put(offset++, (byte) (0xF0 | (cp >> 18)));
+            arena.put(offset++, (byte) (0x80 | ((cp >> 12) & 0x3F)));
+            arena.put(offset++, (byte) (0x80 | ((cp >> 6) & 0x3F)));
+            arena.put(offset++, (byte) (0x80 | (cp & 0x3F)));
+         }
+         else if (Character.isSurrogate(c))
+         {
+            //unpaired surrogate, written as U+FFFD which has the same 3 byte length
+            arena.put(offset++, (byte) 0xEF);
+            arena.put(offset++, (byte) 0xBF);
+            arena.put(offset++, (byte) 0xBD);
+         }
+         else
+         {
+            arena.put(offset++, (byte) (0xE0 | (c >> 12)));
+            arena.put(offset++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+            arena.put(offset++, (byte) (0x80 | (c & 0x3F)));
+         }
+      }
+      arena.putInt(start, offset - start - 4);
+      return offset;
+   }
+
+   String getString(int offset)
+   {
+      int length = arena.getInt(offset);
+      if (length < 0)
+      {
+         return null;
+      }
+
+      if (scratch.length < length)
+      {
+         scratch = new byte[Math.max(length, scratch.length * 2)];
+      }
+      reader.position(offset + 4);
+      reader.get(scratch, 0, length);
+      return new String(scratch, 0, length, DbLogRow.UTF8);
+   }
+}
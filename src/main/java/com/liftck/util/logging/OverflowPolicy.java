@@ -0,0 +1,37 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+/**
+ * What LogbackBatchDbAppender does with an event whose writer queue is full.
+ */
+enum OverflowPolicy
+{
+   DROP_NEWEST("dropNewest"), // the new event is spilled or dropped
+   DROP_OLDEST("dropOldest"), // the oldest queued event is dropped to make room
+   DROP_LOWEST_LEVEL("dropLowestLevel"), // the oldest queued event below WARN is dropped to make room for a WARN or ERROR
+   BLOCK("block"); // the caller waits up to overflowBlockMs for room, then the new event is spilled or dropped
+
+   final String name;
+
+   OverflowPolicy(String name)
+   {
+      this.name = name;
+   }
+
+   /**
+    * @return the policy with the given property value or null if there is none
+    */
+   static OverflowPolicy forName(String name)
+   {
+      for (OverflowPolicy policy : values())
+      {
+         if (policy.name.equalsIgnoreCase(name))
+         {
+            return policy;
+         }
+      }
+      return null;
+   }
+}
@@ -0,0 +1,260 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import ch.qos.logback.classic.Level;
+
+/**
+ * Token bucket limits on how many events per minute each messageKey may write, with a
+ * separate budget for each level.
+ *
+ * Each (level, messageKey) bucket is a single AtomicLong holding its theoretical arrival
+ * time (the generic cell rate algorithm), so taking a token is one CAS and there are no
+ * locks on the logging path.  Events over the limit are only counted, summary() turns
+ * those counts into one row per bucket and forgets buckets that have been idle long
+ * enough to be full again.
+ */
+class RateLimiter
+{
+   static final String                       OVERFLOW_KEY = "";
+   static final String                       SUMMARY_PREFIX = "Rate limited: ";
+
+   final Limit[]                             limits       = new Limit[Level.ERROR_INT / Level.DEBUG_INT + 1];
+   final int                                 burst;
+   final int                                 maxKeys;
+   final long                                summaryIntervalNanos;
+   final AtomicLong                          nextSummary;
+   final LongAdder                           suppressed   = new LongAdder();
+
+   /**
+    * @param rateLimits comma separated LEVEL=eventsPerMinute pairs, levels that are not
+    * listed are not limited
+    * @throws IllegalArgumentException if rateLimits can not be parsed
+    */
+   RateLimiter(String rateLimits, int burst, int maxKeys, long summaryIntervalMs)
+   {
+      this.burst = burst;
+      this.maxKeys = maxKeys;
+      this.summaryIntervalNanos = TimeUnit.MILLISECONDS.toNanos(summaryIntervalMs);
+      this.nextSummary = new AtomicLong(System.nanoTime() + summaryIntervalNanos);
+
+      for (String pair : rateLimits.split(","))
+      {
+         pair = pair.trim();
+         if (pair.length() == 0)
+         {
+            continue;
+         }
+
+         int equals = pair.indexOf('=');
+         if (equals < 0)
+         {
+            throw new IllegalArgumentException("Expected LEVEL=eventsPerMinute but found '" + pair + "'");
+         }
+
+         Level level = Level.toLevel(pair.substring(0, equals).trim(), null);
+         if (level == null || level.toInt() < Level.TRACE_INT || level.toInt() > Level.ERROR_INT)
+         {
+            throw new IllegalArgumentException("Unknown level in '" + pair + "'");
+         }
+
+         int perMinute;
+         try
+         {
+            perMinute = Integer.parseInt(pair.substring(equals + 1).trim());
+         }
+         catch (NumberFormatException ex)
+         {
+            throw new IllegalArgumentException("Expected LEVEL=eventsPerMinute but found '" + pair + "'");
+         }
+         if (perMinute < 1)
+         {
+            throw new IllegalArgumentException("eventsPerMinute must be at least 1 in '" + pair + "'");
+         }
+
+         limits[indexOf(level.toInt())] = new Limit(level, TimeUnit.MINUTES.toNanos(1) / perMinute, burst);
+      }
+   }
+
+   static int indexOf(int level)
+   {
+      return level / Level.DEBUG_INT;
+   }
+
+   /**
+    * @return true if the event may be written, false if it was counted as suppressed
+    */
+   boolean tryAcquire(int level, String messageKey, String category, String message, long timeStamp)
+   {
+      int index = indexOf(level);
+      Limit limit = index >= 0 && index < limits.length ? limits[index] : null;
+      if (limit == null)
+      {
+         return true;
+      }
+
+      Bucket bucket = limit.bucketFor(messageKey == null ? OVERFLOW_KEY : messageKey, maxKeys);
+      if (bucket.tryAcquire(System.nanoTime(), limit))
+      {
+         return true;
+      }
+
+      bucket.suppress(category, message, timeStamp);
+      suppressed.increment();
+      return false;
+   }
+
+   /**
+    * @return true if the calling thread should produce the summary now, at most one
+    * thread a summary interval wins
+    */
+   boolean summaryDue()
+   {
+      long next = nextSummary.get();
+      long now = System.nanoTime();
+      return now - next >= 0 && nextSummary.compareAndSet(next, now + summaryIntervalNanos);
+   }
+
+   /**
+    * Takes the suppressed counts of every bucket as summary rows and removes buckets
+    * that have suppressed nothing and have refilled completely.
+    */
+   List<DbLogRow> summary()
+   {
+      List<DbLogRow> rows = new ArrayList<DbLogRow>();
+      long now = System.nanoTime();
+      for (int index = 0; index < limits.length; index++)
+      {
+         Limit limit = limits[index];
+         if (limit == null)
+         {
+            continue;
+         }
+
+         Iterator<Bucket> buckets = limit.buckets.values().iterator();
+         while (buckets.hasNext())
+         {
+            Bucket bucket = buckets.next();
+            DbLogRow row = bucket.summary(limit.level);
+            if (row != null)
+            {
+               rows.add(row);
+            }
+            else if (bucket.tat.get() - now <= 0)
+            {
+               buckets.remove();
+            }
+         }
+      }
+      return rows;
+   }
+
+   long getSuppressed()
+   {
+      return suppressed.sum();
+   }
+
+   static class Limit
+   {
+      final Level                             level;
+      final long                              intervalNanos;  // time to earn one token
+      final long                              toleranceNanos; // how far ahead of now the bucket may run, the burst
+      final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+      Limit(Level level, long intervalNanos, int burst)
+      {
+         this.level = level;
+         this.intervalNanos = intervalNanos;
+         this.toleranceNanos = intervalNanos * Math.max(burst - 1, 0);
+      }
+
+      /**
+       * Once maxKeys buckets exist new keys share one overflow bucket so that a flood
+       * of distinct keys can neither grow the table nor escape the limit.
+       */
+      Bucket bucketFor(String messageKey, int maxKeys)
+      {
+         Bucket bucket = buckets.get(messageKey);
+         if (bucket == null)
+         {
+            if (buckets.size() >= maxKeys)
+            {
+               messageKey = OVERFLOW_KEY;
+               bucket = buckets.get(messageKey);
+            }
+            if (bucket == null)
+            {
+               bucket = new Bucket();
+               Bucket existing = buckets.putIfAbsent(messageKey, bucket);
+               if (existing != null)
+               {
+                  bucket = existing;
+               }
+            }
+         }
+         return bucket;
+      }
+   }
+
+   static class Bucket
+   {
+      final AtomicLong tat        = new AtomicLong(Long.MIN_VALUE); // theoretical arrival time of the next event
+      final AtomicLong suppressed = new AtomicLong(0);
+
+      // the latest suppressed event, racy by design, the summary row only needs one of them
+      volatile String  category;
+      volatile String  message;
+      volatile long    firstSuppressed;
+      volatile long    lastSuppressed;
+
+      boolean tryAcquire(long now, Limit limit)
+      {
+         while (true)
+         {
+            long current = tat.get();
+            long start = current == Long.MIN_VALUE || current - now < 0 ? now : current;
+            if (start - now > limit.toleranceNanos)
+            {
+               return false;
+            }
+            if (tat.compareAndSet(current, start + limit.intervalNanos))
+            {
+               return true;
+            }
+         }
+      }
+
+      void suppress(String category, String message, long timeStamp)
+      {
+         if (suppressed.getAndIncrement() == 0)
+         {
+            firstSuppressed = timeStamp;
+         }
+         this.category = category;
+         this.message = message;
+         this.lastSuppressed = timeStamp;
+      }
+
+      DbLogRow summary(Level level)
+      {
+         long count = suppressed.getAndSet(0);
+         if (count == 0)
+         {
+            return null;
+         }
+
+         int occurrences = (int) Math.min(count, Integer.MAX_VALUE);
+         String error = SUMMARY_PREFIX + count + " events like this one were suppressed";
+         return new DbLogRow(lastSuppressed, level.toInt(), level.toString(), category, "unknown", "unknown", 0, message, error, occurrences, firstSuppressed);
+      }
+   }
+}
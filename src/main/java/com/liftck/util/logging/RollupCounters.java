@@ -0,0 +1,253 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per minute event counts by (minute, level, category, messageKey) that are added to a
+ * rollup table with INSERT ... ON DUPLICATE KEY UPDATE count = count + ?, so dashboards
+ * can count events without scanning the raw rows.  Events are counted as they are
+ * appended, before rate limiting or any overflow policy drops them.
+ *
+ * The rollup table needs the columns minute, service, level, category, messageKey and
+ * count with a unique key on the first five, for example
+ *
+ *    CREATE TABLE ServerMessageRollup (minute DATETIME NOT NULL, service VARCHAR(64) NOT NULL, level INT NOT NULL,
+ *       category VARCHAR(255) NOT NULL, messageKey VARCHAR(100) NOT NULL, count BIGINT NOT NULL,
+ *       PRIMARY KEY (minute, service, level, category, messageKey))
+ *
+ * Counting is one CAS on the key's counter.  flush() takes every count, counters of past
+ * minutes are retired and removed once taken, an increment that finds its counter
+ * retired retries on a fresh one so no count is lost.
+ */
+class RollupCounters
+{
+   static final long                           MINUTE       = TimeUnit.MINUTES.toMillis(1);
+   static final String                         OVERFLOW_KEY = "";
+
+   final LogbackBatchDbAppender                appender;
+   final String                                upsertSql;
+   final int                                   maxKeys;
+   final long                                  flushIntervalNanos;
+   final AtomicLong                            nextFlush;
+   final ConcurrentHashMap<Key, Counter>       counters     = new ConcurrentHashMap<Key, Counter>();
+
+   RollupCounters(LogbackBatchDbAppender appender, String rollupTable, int maxKeys, long flushIntervalMs)
+   {
+      this.appender = appender;
+      this.maxKeys = maxKeys;
+      this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+      this.nextFlush = new AtomicLong(System.nanoTime() + flushIntervalNanos);
+      this.upsertSql = "INSERT INTO " + rollupTable + " (minute, service, level, category, messageKey, count) VALUES (?, ?, ?, ?, ?, ?)" //
+            + " ON DUPLICATE KEY UPDATE count = count + ?";
+   }
+
+   void count(long timeStamp, int level, String category, String messageKey)
+   {
+      add(new Key(timeStamp - timeStamp % MINUTE, level, category, messageKey), 1);
+   }
+
+   void add(Key key, long count)
+   {
+      while (true)
+      {
+         Counter counter = counters.get(key);
+         if (counter == null)
+         {
+            if (counters.size() >= maxKeys && !OVERFLOW_KEY.equals(key.messageKey))
+            {
+               //a flood of distinct keys is counted per minute, level and category only
+               key = new Key(key.minute, key.level, key.category, OVERFLOW_KEY);
+               continue;
+            }
+
+            counter = new Counter();
+            Counter existing = counters.putIfAbsent(key, counter);
+            if (existing != null)
+            {
+               counter = existing;
+            }
+         }
+
+         if (counter.add(count))
+         {
+            return;
+         }
+         counters.remove(key, counter);
+      }
+   }
+
+   /**
+    * @return true if the calling thread should flush now, at most one thread a flush
+    * interval wins
+    */
+   boolean flushDue()
+   {
+      long next = nextFlush.get();
+      long now = System.nanoTime();
+      return now - next >= 0 && nextFlush.compareAndSet(next, now + flushIntervalNanos);
+   }
+
+   /**
+    * Adds the counts taken since the last flush to the rollup table and commits.  If that
+    * fails the counts are put back so the next flush includes them.
+    */
+   void flush(CachedConnection connection) throws SQLException
+   {
+      long currentMinute = System.currentTimeMillis() / MINUTE * MINUTE;
+      List<Key> keys = new ArrayList<Key>();
+      List<Long> counts = new ArrayList<Long>();
+      for (Map.Entry<Key, Counter> entry : counters.entrySet())
+      {
+         Key key = entry.getKey();
+         Counter counter = entry.getValue();
+         long count;
+         if (key.minute < currentMinute)
+         {
+            count = counter.retire();
+            counters.remove(key, counter);
+         }
+         else
+         {
+            count = counter.take();
+         }
+
+         if (count > 0)
+         {
+            keys.add(key);
+            counts.add(count);
+         }
+      }
+
+      if (keys.isEmpty())
+      {
+         return;
+      }
+
+      try
+      {
+         PreparedStatement statement = connection.prepare(upsertSql);
+         for (int i = 0; i < keys.size(); i++)
+         {
+            Key key = keys.get(i);
+            long count = counts.get(i);
+            statement.setTimestamp(1, new Timestamp(key.minute));
+            statement.setString(2, appender.service);
+            statement.setInt(3, key.level);
+            statement.setString(4, key.category);
+            statement.setString(5, key.messageKey);
+            statement.setLong(6, count);
+            statement.setLong(7, count);
+            statement.addBatch();
+         }
+         statement.executeBatch();
+         connection.commit();
+      }
+      catch (SQLException ex)
+      {
+         for (int i = 0; i < keys.size(); i++)
+         {
+            add(keys.get(i), counts.get(i));
+         }
+         throw ex;
+      }
+   }
+
+   static class Counter extends AtomicLong
+   {
+      private static final long serialVersionUID = 1L;
+
+      static final long         RETIRED          = Long.MIN_VALUE;
+
+      /**
+       * @return false if the counter was retired and the count must go to a new one
+       */
+      boolean add(long count)
+      {
+         while (true)
+         {
+            long current = get();
+            if (current == RETIRED)
+            {
+               return false;
+            }
+            if (compareAndSet(current, current + count))
+            {
+               return true;
+            }
+         }
+      }
+
+      long take()
+      {
+         while (true)
+         {
+            long current = get();
+            if (current == RETIRED)
+            {
+               return 0;
+            }
+            if (compareAndSet(current, 0))
+            {
+               return current;
+            }
+         }
+      }
+
+      long retire()
+      {
+         long current = getAndSet(RETIRED);
+         return current == RETIRED ? 0 : current;
+      }
+   }
+
+   static class Key
+   {
+      final long   minute;
+      final int    level;
+      final String category;
+      final String messageKey;
+      final int    hash;
+
+      Key(long minute, int level, String category, String messageKey)
+      {
+         this.minute = minute;
+         this.level = level;
+         this.category = category == null ? "" : category;
+         this.messageKey = messageKey == null ? "" : messageKey;
+
+         int h = (int) (minute ^ (minute >>> 32));
+         h = 31 * h + level;
+         h = 31 * h + this.category.hashCode();
+         h = 31 * h + this.messageKey.hashCode();
+         this.hash = h;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return hash;
+      }
+
+      @Override
+      public boolean equals(Object o)
+      {
+         if (!(o instanceof Key))
+         {
+            return false;
+         }
+         Key other = (Key) o;
+         return minute == other.minute && level == other.level && category.equals(other.category) && messageKey.equals(other.messageKey);
+      }
+   }
+}
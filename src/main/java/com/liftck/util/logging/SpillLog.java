@@ -0,0 +1,324 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * A bounded, segmented, memory mapped on disk log of DbLogRows.
+ *
+ * Rows are appended to the newest segment as [int length][encoded row] records and read
+ * back, oldest first, by a single replay thread.  A read only becomes permanent when the
+ * replayer calls commit(), at which point every segment before the read cursor is deleted
+ * and the cursor is saved so that a restart does not replay committed rows again.
+ *
+ * Disk use is bounded by maxBytes, once that many bytes of segments exist appends are
+ * refused until the replayer catches up.
+ */
+class SpillLog
+{
+   static final String               SEGMENT_PREFIX = "spill-";
+   static final String               SEGMENT_SUFFIX = ".log";
+   static final String               CURSOR_FILE    = "spill.cursor";
+
+   final File                        directory;
+   final int                         segmentBytes;
+   final long                        maxBytes;
+
+   final TreeMap<Long, File>         segments         = new TreeMap<Long, File>(); // every segment on disk, oldest first
+   long                              nextSegmentId    = 0;
+
+   MappedByteBuffer                  writeBuffer      = null;
+   long                              writeSegmentId   = -1;
+
+   ByteBuffer                        readBuffer       = null;
+   long                              readSegmentId    = -1;
+
+   MappedByteBuffer                  cursorBuffer     = null;
+   long                              cursorSegmentId  = -1;                           // committed read position
+   int                               cursorPosition   = 0;
+   long                              pendingSegmentId = -1;                           // read position after the last read()
+   int                               pendingPosition  = 0;
+   int                               pendingCount     = 0;
+
+   ByteBuffer                        scratch          = ByteBuffer.allocate(16 * 1024);
+
+   long                              spilled          = 0;
+   long                              replayed         = 0;
+   long                              dropped          = 0;
+
+   SpillLog(File directory, int segmentBytes, long maxBytes) throws IOException
+   {
+      this.directory = directory;
+      this.segmentBytes = segmentBytes;
+      this.maxBytes = maxBytes;
+
+      if (!directory.isDirectory() && !directory.mkdirs())
+      {
+         throw new IOException("Unable to create spill directory " + directory.getAbsolutePath());
+      }
+
+      File[] files = directory.listFiles();
+      if (files != null)
+      {
+         for (File file : files)
+         {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+            {
+               try
+               {
+                  long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                  segments.put(id, file);
+                  nextSegmentId = Math.max(nextSegmentId, id + 1);
+               }
+               catch (NumberFormatException ex)
+               {
+                  // not one of ours
+               }
+            }
+         }
+      }
+
+      RandomAccessFile raf = new RandomAccessFile(new File(directory, CURSOR_FILE), "rw");
+      try
+      {
+         cursorBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 12);
+      }
+      finally
+      {
+         raf.close();
+      }
+
+      long savedSegmentId = cursorBuffer.getLong(0);
+      if (segments.containsKey(savedSegmentId))
+      {
+         cursorSegmentId = savedSegmentId;
+         cursorPosition = cursorBuffer.getInt(8);
+      }
+      pendingSegmentId = cursorSegmentId;
+      pendingPosition = cursorPosition;
+   }
+
+   /**
+    * @return false if the row could not be written because the disk budget is used up
+    */
+   synchronized boolean append(DbLogRow row)
+   {
+      try
+      {
+         ByteBuffer record = encode(row);
+         int needed = 4 + record.remaining();
+         if (needed > segmentBytes)
+         {
+            dropped++;
+            return false;
+         }
+
+         if (writeBuffer == null || writeBuffer.remaining() < needed)
+         {
+            if ((segments.size() + 1) * (long) segmentBytes > maxBytes)
+            {
+               dropped++;
+               return false;
+            }
+            rollSegment();
+         }
+
+         writeBuffer.putInt(record.remaining());
+         writeBuffer.put(record);
+         spilled++;
+         return true;
+      }
+      catch (IOException ex)
+      {
+         dropped++;
+         return false;
+      }
+   }
+
+   ByteBuffer encode(DbLogRow row)
+   {
+      while (true)
+      {
+         try
+         {
+            scratch.clear();
+            row.encode(scratch);
+            scratch.flip();
+            return scratch;
+         }
+         catch (BufferOverflowException ex)
+         {
+            scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+         }
+      }
+   }
+
+   void rollSegment() throws IOException
+   {
+      long id = nextSegmentId++;
+      File file = new File(directory, SEGMENT_PREFIX + String.format("%016d", id) + SEGMENT_SUFFIX);
+
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try
+      {
+         raf.setLength(segmentBytes);
+         writeBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+      }
+      finally
+      {
+         raf.close();
+      }
+
+      writeSegmentId = id;
+      segments.put(id, file);
+   }
+
+   /**
+    * Reads up to max rows following the last committed (or last read) position.
+    * The rows are not removed from the log until commit() is called.
+    * @return the number of rows added to the list
+    */
+   synchronized int read(List<DbLogRow> rows, int max) throws IOException
+   {
+      int count = 0;
+      long segmentId = pendingSegmentId;
+      int position = pendingPosition;
+
+      if (!segments.containsKey(segmentId))
+      {
+         Long next = segments.ceilingKey(segmentId);
+         if (next == null)
+         {
+            return 0;
+         }
+         segmentId = next;
+         position = 0;
+      }
+
+      while (count < max)
+      {
+         ByteBuffer buffer = bufferFor(segmentId);
+         int length = position + 4 <= buffer.limit() ? buffer.getInt(position) : 0;
+         if (length <= 0)
+         {
+            //end of this segment, move on unless it is still being written to
+            Long next = segments.higherKey(segmentId);
+            if (segmentId == writeSegmentId || next == null)
+            {
+               break;
+            }
+            segmentId = next;
+            position = 0;
+            continue;
+         }
+
+         ByteBuffer record = buffer.duplicate();
+         record.limit(position + 4 + length);
+         record.position(position + 4);
+         rows.add(DbLogRow.decode(record));
+         position += 4 + length;
+         count++;
+      }
+
+      pendingSegmentId = segmentId;
+      pendingPosition = position;
+      pendingCount += count;
+      return count;
+   }
+
+   ByteBuffer bufferFor(long segmentId) throws IOException
+   {
+      if (segmentId == writeSegmentId)
+      {
+         ByteBuffer buffer = writeBuffer.duplicate();
+         buffer.limit(writeBuffer.position());
+         return buffer;
+      }
+
+      if (readSegmentId != segmentId)
+      {
+         RandomAccessFile raf = new RandomAccessFile(segments.get(segmentId), "r");
+         try
+         {
+            readBuffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            readSegmentId = segmentId;
+         }
+         finally
+         {
+            raf.close();
+         }
+      }
+      return readBuffer;
+   }
+
+   /**
+    * Makes everything returned by read() permanent, deleting fully replayed segments.
+    */
+   synchronized void commit()
+   {
+      while (!segments.isEmpty() && segments.firstKey() < pendingSegmentId)
+      {
+         long id = segments.firstKey();
+         File file = segments.remove(id);
+         if (id == readSegmentId)
+         {
+            readBuffer = null;
+            readSegmentId = -1;
+         }
+         file.delete();
+      }
+
+      replayed += pendingCount;
+      pendingCount = 0;
+      cursorSegmentId = pendingSegmentId;
+      cursorPosition = pendingPosition;
+      cursorBuffer.putLong(0, cursorSegmentId);
+      cursorBuffer.putInt(8, cursorPosition);
+   }
+
+   /**
+    * Forgets everything returned by read() since the last commit so it is read again.
+    */
+   synchronized void rollback()
+   {
+      pendingSegmentId = cursorSegmentId;
+      pendingPosition = cursorPosition;
+      pendingCount = 0;
+   }
+
+   /**
+    * @return true if there may be rows that have not been replayed yet
+    */
+   synchronized boolean hasPending()
+   {
+      if (segments.isEmpty())
+      {
+         return false;
+      }
+      if (writeBuffer == null || cursorSegmentId != writeSegmentId)
+      {
+         return true;
+      }
+      return cursorPosition < writeBuffer.position();
+   }
+
+   synchronized void close()
+   {
+      if (writeBuffer != null)
+      {
+         writeBuffer.force();
+      }
+      cursorBuffer.force();
+   }
+}
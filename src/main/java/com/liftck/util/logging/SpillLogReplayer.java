@@ -0,0 +1,196 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.qos.logback.core.db.DBHelper;
+
+/**
+ * Replays rows from a LogbackBatchDbAppender's SpillLog into the table, in the order they
+ * were spilled, over its own connection.  Rows are only committed in the spill log once
+ * the database transaction they were inserted in has committed.
+ */
+class SpillLogReplayer implements Runnable
+{
+   final LogbackBatchDbAppender appender;
+   final SpillLog               spillLog;
+   final CachedConnection       connection;
+   final String                 threadName;
+
+   volatile Thread              thread  = null;
+   volatile boolean             stopped = false;
+   boolean                      failing = false;
+   final CountDownLatch         finished = new CountDownLatch(1);
+
+   SpillLogReplayer(LogbackBatchDbAppender appender, SpillLog spillLog, String threadName)
+   {
+      this.appender = appender;
+      this.spillLog = spillLog;
+      this.threadName = threadName;
+      this.connection = new CachedConnection(appender.dataSource, appender.validationIntervalMs, appender.validationTimeoutSeconds, appender.maxCachedStatements());
+   }
+
+   void start(Executor executor)
+   {
+      executor.execute(this);
+   }
+
+   void stop()
+   {
+      stopped = true;
+      try
+      {
+         Thread running = thread;
+         if (running != null)
+         {
+            running.interrupt();
+         }
+      }
+      catch (Exception ex)
+      {
+
+      }
+   }
+
+   /**
+    * @return true if the replay loop has exited
+    */
+   boolean awaitFinished(long timeoutNanos)
+   {
+      return LogbackBatchDbWriter.await(finished, timeoutNanos);
+   }
+
+   /**
+    * Closes the raw connection to abort a statement the stopped replayer is blocked in,
+    * the batch is rolled back in the spill log and replayed after the next start.
+    */
+   void abort()
+   {
+      DBHelper.closeConnection(connection.connection);
+   }
+
+   @Override
+   public void run()
+   {
+      thread = Thread.currentThread();
+      LogbackBatchDbWriter.WRITER_THREAD.set(Boolean.TRUE);
+      try
+      {
+         if (!stopped)
+         {
+            replay();
+         }
+      }
+      finally
+      {
+         LogbackBatchDbWriter.WRITER_THREAD.remove();
+         thread = null;
+         finished.countDown();
+      }
+   }
+
+   void replay()
+   {
+      List<DbLogRow> rows = new ArrayList<DbLogRow>();
+      long intervalNanos = TimeUnit.MILLISECONDS.toNanos(appender.spillReplayIntervalMs);
+
+      while (!Thread.currentThread().isInterrupted())
+      {
+         rows.clear();
+         int read = 0;
+         try
+         {
+            CircuitBreaker breaker = appender.circuitBreaker;
+            if (breaker.isOpen() && breaker.remainingNanos() > 0)
+            {
+               //leave the db alone until the breaker lets a probe through
+               LockSupport.parkNanos(this, Math.min(breaker.remainingNanos(), intervalNanos));
+               continue;
+            }
+
+            if (!spillLog.hasPending() || (read = spillLog.read(rows, appender.maxBatchSize)) == 0)
+            {
+               spillLog.commit();
+               LockSupport.parkNanos(this, intervalNanos);
+               continue;
+            }
+
+            //only asked once there is a batch, a half open breaker's probe has to be
+            //reported and insertWithRetry() reports the outcome of every attempt
+            if (!breaker.allowRequest())
+            {
+               spillLog.rollback();
+               LockSupport.parkNanos(this, Math.min(Math.max(breaker.remainingNanos(), 1), intervalNanos));
+               continue;
+            }
+
+            appender.insertWithRetry(connection, rows);
+            spillLog.commit();
+
+            if (failing)
+            {
+               appender.log.info("Replaying spilled log events to the db again.");
+               failing = false;
+            }
+         }
+         catch (Exception ex)
+         {
+            connection.invalidate();
+
+            if (rows.size() < read)
+            {
+               //some of the batch was written, or thrown away by bisection, so it can not
+               //be replayed as it was read, the rest goes back on the end of the log
+               spillLog.commit();
+               requeue(rows);
+               retryLater(ex, intervalNanos);
+            }
+            else if (LogbackBatchDbAppender.isDataError(ex))
+            {
+               //these rows will never insert, retrying them would block the rest of the log
+               appender.metrics.failed.add(rows.size());
+               appender.log.warn("Exception replaying a batch of spilled log events to the db.  These log events will be thrown away.", ex);
+               spillLog.commit();
+            }
+            else
+            {
+               spillLog.rollback();
+               retryLater(ex, intervalNanos);
+            }
+         }
+      }
+
+      connection.close();
+   }
+
+   /**
+    * Appends the rows to the end of the spill log again, those it has no room for are lost.
+    */
+   void requeue(List<DbLogRow> rows)
+   {
+      for (DbLogRow row : rows)
+      {
+         if (!spillLog.append(row))
+         {
+            appender.metrics.failed.increment();
+         }
+      }
+   }
+
+   void retryLater(Exception ex, long intervalNanos)
+   {
+      if (!failing)
+      {
+         appender.log.warn("Exception replaying spilled log events to the db.  They will be retried.", ex);
+         failing = true;
+      }
+      LockSupport.parkNanos(this, intervalNanos);
+   }
+}
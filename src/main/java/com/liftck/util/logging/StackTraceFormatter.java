@@ -0,0 +1,245 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+
+/**
+ * Formats the abbreviated stack trace stored in the error column: up to 4 levels of
+ * causes, 2 lines per level except the root cause which gets 12, truncated to
+ * maxLength characters.
+ *
+ * Each thread reuses its own StringBuilder so the only allocation per formatted stack
+ * is the resulting String.  When a cache size is given, formatted stacks are also kept
+ * in a bounded LRU cache keyed by a fingerprint of exactly the parts of the throwable
+ * chain that end up in the text (class names, messages, the printed frames and frame
+ * counts), so the same exception shape logged over and over is formatted once.
+ */
+class StackTraceFormatter
+{
+   static final int                 MAX_REUSED_CAPACITY = 64 * 1024;
+   static final int                 MAX_LEVEL           = 5;
+   static final int                 STANDARD_LINE_LIMIT = 2;
+   static final int                 CAUSE_LINE_LIMIT    = 12;
+   static final int                 CACHE_STRIPES       = 16;
+
+   final int                        maxLength;
+   final LruCache[]                 caches;
+   final LongAdder                  hits                = new LongAdder();
+   final LongAdder                  misses              = new LongAdder();
+
+   final ThreadLocal<StringBuilder> builders            = new ThreadLocal<StringBuilder>()
+                                                           {
+                                                              @Override
+                                                              protected StringBuilder initialValue()
+                                                              {
+                                                                 return new StringBuilder(1024);
+                                                              }
+                                                           };
+
+   StackTraceFormatter(int maxLength)
+   {
+      this(maxLength, 0);
+   }
+
+   /**
+    * @param cacheSize the number of formatted stacks to cache, 0 for no caching
+    */
+   StackTraceFormatter(int maxLength, int cacheSize)
+   {
+      this.maxLength = maxLength;
+      if (cacheSize > 0)
+      {
+         caches = new LruCache[CACHE_STRIPES];
+         for (int i = 0; i < caches.length; i++)
+         {
+            caches[i] = new LruCache(Math.max(1, cacheSize / CACHE_STRIPES));
+         }
+      }
+      else
+      {
+         caches = null;
+      }
+   }
+
+   String format(IThrowableProxy throwableProxy)
+   {
+      if (caches == null)
+      {
+         return doFormat(throwableProxy);
+      }
+
+      Fingerprint key = new Fingerprint(throwableProxy);
+      LruCache cache = caches[(key.hash & Integer.MAX_VALUE) % caches.length];
+
+      String stackTrace;
+      synchronized (cache)
+      {
+         stackTrace = cache.get(key);
+      }
+      if (stackTrace != null)
+      {
+         hits.increment();
+         return stackTrace;
+      }
+
+      misses.increment();
+      stackTrace = doFormat(throwableProxy);
+      synchronized (cache)
+      {
+         cache.put(key, stackTrace);
+      }
+      return stackTrace;
+   }
+
+   long getHits()
+   {
+      return hits.sum();
+   }
+
+   long getMisses()
+   {
+      return misses.sum();
+   }
+
+   String doFormat(IThrowableProxy throwableProxy)
+   {
+      StringBuilder sb = builders.get();
+      sb.setLength(0);
+      String stackTrace = buildStackTrace(sb, throwableProxy, 1).toString();
+
+      if (sb.capacity() > MAX_REUSED_CAPACITY)
+      {
+         //don't let one huge stack pin a huge buffer to the thread
+         builders.remove();
+      }
+      return stackTrace;
+   }
+
+   StringBuilder buildStackTrace(StringBuilder sb, IThrowableProxy throwableProxy, int level)
+   {
+      int maxLevel = MAX_LEVEL;
+      int standardLineLimit = STANDARD_LINE_LIMIT;
+      int causeLineLimit = CAUSE_LINE_LIMIT;
+
+      if (throwableProxy != null && level < maxLevel)
+      {
+         if (level > 1)
+         {
+            sb.append("Caused by: ");
+         }
+         sb.append(throwableProxy.getClassName()).append(": ").append(throwableProxy.getMessage()).append("\n");
+         IThrowableProxy cause = throwableProxy.getCause();
+         int i = 0;
+         int limit = standardLineLimit;
+         if (cause == null)
+         {
+            limit = causeLineLimit;
+         }
+
+         int totalLines = throwableProxy.getStackTraceElementProxyArray().length;
+         for (StackTraceElementProxy stackLine : throwableProxy.getStackTraceElementProxyArray())
+         {
+            sb.append("\t").append(stackLine.toString()).append("\n");
+            i++;
+            totalLines--;
+            if (i >= limit)
+            {
+               if (totalLines > 0)
+               {
+                  sb.append("\t... ").append(totalLines).append(" lines omitted \n");
+               }
+               break;
+            }
+         }
+
+         if (cause != null)
+         {
+            buildStackTrace(sb, cause, ++level);
+         }
+      }
+
+      if (sb.length() > maxLength)
+      {
+         sb.delete(maxLength, sb.length());
+      }
+
+      return sb;
+   }
+
+   /**
+    * Everything buildStackTrace() reads from a throwable chain, so equal fingerprints
+    * always format to equal text.
+    */
+   static class Fingerprint
+   {
+      final Object[] parts;
+      final int      hash;
+
+      Fingerprint(IThrowableProxy throwableProxy)
+      {
+         List<Object> list = new ArrayList<Object>(32);
+         IThrowableProxy proxy = throwableProxy;
+         for (int level = 1; proxy != null && level < MAX_LEVEL; level++)
+         {
+            StackTraceElementProxy[] lines = proxy.getStackTraceElementProxyArray();
+            IThrowableProxy cause = proxy.getCause();
+            int limit = cause == null ? CAUSE_LINE_LIMIT : STANDARD_LINE_LIMIT;
+
+            list.add(proxy.getClassName());
+            list.add(proxy.getMessage());
+            list.add(lines.length);
+            for (int i = 0; i < lines.length && i < limit; i++)
+            {
+               list.add(lines[i].getStackTraceElement());
+            }
+            list.add(cause != null);
+
+            proxy = cause;
+         }
+
+         parts = list.toArray();
+         hash = Arrays.hashCode(parts);
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return hash;
+      }
+
+      @Override
+      public boolean equals(Object obj)
+      {
+         return obj instanceof Fingerprint && hash == ((Fingerprint) obj).hash && Arrays.equals(parts, ((Fingerprint) obj).parts);
+      }
+   }
+
+   static class LruCache extends LinkedHashMap<Fingerprint, String>
+   {
+      private static final long serialVersionUID = 1L;
+
+      final int                 maxSize;
+
+      LruCache(int maxSize)
+      {
+         super(16, 0.75f, true);
+         this.maxSize = maxSize;
+      }
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Fingerprint, String> eldest)
+      {
+         return size() > maxSize;
+      }
+   }
+}
@@ -0,0 +1,223 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Writes each distinct formatted stack trace once, compressed, to a side table keyed by
+ * its SHA-1 so the error column of the main table only holds "sha1:" and the hash.
+ *
+ * The side table needs a hash primary key and a stackTrace blob, for example
+ *
+ *    CREATE TABLE ServerMessageStackTrace (hash VARCHAR(45) NOT NULL PRIMARY KEY, stackTrace BLOB NOT NULL)
+ *
+ * The blob is in the format of MySQL's COMPRESS(), a little endian length followed by
+ * the zlib deflated UTF-8 text, so SELECT UNCOMPRESS(stackTrace) reads it back.
+ *
+ * Only the writer threads use this.  The hash of a stack trace is cached by its text,
+ * which is cheap because StackTraceFormatter hands out the same String instance for
+ * repeats, and the hashes already in the side table are remembered so the common case
+ * adds no insert to the batch.  Both caches are LRUs, forgetting a written hash only
+ * costs a redundant insert that the upsert ignores.
+ */
+class StackTraceStore
+{
+   static final String               PREFIX     = "sha1:";
+   static final int                  MIN_LENGTH = 64;    // shorter errors are not worth replacing with a reference
+
+   final String                      upsertSql;
+   final Map<String, String>         references;         // stack trace text -> reference
+   final Map<String, Boolean>        written;            // references known to be in the side table
+
+   StackTraceStore(String stackTraceTable, int cacheSize)
+   {
+      this.upsertSql = "INSERT INTO " + stackTraceTable + " (hash, stackTrace) VALUES (?, ?) ON DUPLICATE KEY UPDATE hash = hash";
+      this.references = new LruMap<String>(Math.max(cacheSize, 1));
+      this.written = new LruMap<Boolean>(Math.max(cacheSize, 1) * 10);
+   }
+
+   /**
+    * @return true if the error should be stored in the side table rather than inline,
+    * rate limit summaries stay readable
+    */
+   static boolean isDeduplicated(String error)
+   {
+      return error != null && error.length() >= MIN_LENGTH && !error.startsWith(RateLimiter.SUMMARY_PREFIX);
+   }
+
+   /**
+    * @return the value of the error column for the error, its reference if deduplicated
+    */
+   String columnValue(String error)
+   {
+      return isDeduplicated(error) ? referenceOf(error) : error;
+   }
+
+   String referenceOf(String error)
+   {
+      String reference;
+      synchronized (references)
+      {
+         reference = references.get(error);
+      }
+      if (reference == null)
+      {
+         reference = PREFIX + sha1(error);
+         synchronized (references)
+         {
+            references.put(error, reference);
+         }
+      }
+      return reference;
+   }
+
+   /**
+    * Adds the stack traces of the rows that are not known to be in the side table yet to
+    * the current transaction.
+    * @return the references written, to be passed to committed() once the transaction commits
+    */
+   List<String> write(CachedConnection connection, List<DbLogRow> rows) throws SQLException
+   {
+      List<String> pending = null;
+      PreparedStatement statement = null;
+      for (DbLogRow row : rows)
+      {
+         if (!isDeduplicated(row.error))
+         {
+            continue;
+         }
+
+         String reference = referenceOf(row.error);
+         synchronized (written)
+         {
+            if (written.containsKey(reference))
+            {
+               continue;
+            }
+         }
+         if (pending == null)
+         {
+            pending = new ArrayList<String>();
+            statement = connection.prepare(upsertSql);
+         }
+         else if (pending.contains(reference))
+         {
+            continue;
+         }
+
+         pending.add(reference);
+         statement.setString(1, reference);
+         statement.setBytes(2, compress(row.error));
+         statement.addBatch();
+      }
+
+      if (statement != null)
+      {
+         statement.executeBatch();
+      }
+      return pending;
+   }
+
+   void committed(List<String> references)
+   {
+      if (references != null)
+      {
+         synchronized (written)
+         {
+            for (String reference : references)
+            {
+               written.put(reference, Boolean.TRUE);
+            }
+         }
+      }
+   }
+
+   static String sha1(String text)
+   {
+      try
+      {
+         byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes(DbLogRow.UTF8));
+         StringBuilder hex = new StringBuilder(digest.length * 2);
+         for (byte b : digest)
+         {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+         }
+         return hex.toString();
+      }
+      catch (NoSuchAlgorithmException ex)
+      {
+         //every JVM has SHA-1
+         throw new IllegalStateException(ex);
+      }
+   }
+
+   /**
+    * @return the text in the format of MySQL's COMPRESS()
+    */
+   static byte[] compress(String text)
+   {
+      byte[] bytes = text.getBytes(DbLogRow.UTF8);
+      Deflater deflater = new Deflater();
+      try
+      {
+         deflater.setInput(bytes);
+         deflater.finish();
+
+         ByteBuffer out = ByteBuffer.allocate(4 + bytes.length / 2 + 64).order(ByteOrder.LITTLE_ENDIAN);
+         out.putInt(bytes.length);
+         byte[] chunk = new byte[4096];
+         while (!deflater.finished())
+         {
+            int length = deflater.deflate(chunk);
+            if (out.remaining() < length)
+            {
+               ByteBuffer bigger = ByteBuffer.allocate(out.capacity() * 2 + length).order(ByteOrder.LITTLE_ENDIAN);
+               out.flip();
+               bigger.put(out);
+               out = bigger;
+            }
+            out.put(chunk, 0, length);
+         }
+
+         byte[] compressed = new byte[out.position()];
+         out.flip();
+         out.get(compressed);
+         return compressed;
+      }
+      finally
+      {
+         deflater.end();
+      }
+   }
+
+   static class LruMap<V> extends LinkedHashMap<String, V>
+   {
+      private static final long serialVersionUID = 1L;
+
+      final int                 maxSize;
+
+      LruMap(int maxSize)
+      {
+         super(16, 0.75f, true);
+         this.maxSize = maxSize;
+      }
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, V> eldest)
+      {
+         return size() > maxSize;
+      }
+   }
+}
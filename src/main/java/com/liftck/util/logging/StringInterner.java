@@ -0,0 +1,49 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A bounded, lock free intern table so that queued rows share one instance of the
+ * strings that repeat from event to event (logger names, caller class and method names).
+ *
+ * Once maxSize distinct strings have been seen new strings are returned as is rather
+ * than added, so the table can not grow without bound.  Because the first strings seen
+ * keep their place for good only low cardinality values should be interned, messages
+ * would crowd out the names.
+ */
+class StringInterner
+{
+   final ConcurrentHashMap<String, String> table;
+   final int                               maxSize;
+
+   StringInterner(int maxSize)
+   {
+      this.maxSize = maxSize;
+      this.table = new ConcurrentHashMap<String, String>(Math.min(maxSize, 1024));
+   }
+
+   String intern(String value)
+   {
+      if (value == null)
+      {
+         return null;
+      }
+
+      String interned = table.get(value);
+      if (interned != null)
+      {
+         return interned;
+      }
+
+      if (table.size() >= maxSize)
+      {
+         return value;
+      }
+
+      interned = table.putIfAbsent(value, value);
+      return interned == null ? value : interned;
+   }
+}
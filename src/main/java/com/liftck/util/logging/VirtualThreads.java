@@ -0,0 +1,29 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.util.concurrent.Executor;
+
+/**
+ * This is the Java 8 version, without virtual threads.  The jar is multi-release, on
+ * Java 21 and later it is replaced by the version in src/main/java21.
+ */
+class VirtualThreads
+{
+   /**
+    * A method rather than a constant so WriterThreads is not compiled with this value inlined
+    */
+   static boolean supported()
+   {
+      return false;
+   }
+
+   /**
+    * @return null, see WriterThreads.virtual()
+    */
+   static Executor executor(String name)
+   {
+      return null;
+   }
+}
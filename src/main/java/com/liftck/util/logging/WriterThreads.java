@@ -0,0 +1,48 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Creates the Executors that run LogbackBatchDbAppender's writer and spill replay loops,
+ * each loop gets a thread of its own for as long as the appender runs.
+ *
+ * Virtual threads come from VirtualThreads, the one class the multi-release jar replaces
+ * on Java 21 and later.  Before Java 21 virtual() falls back to platform threads.
+ */
+class WriterThreads
+{
+   static boolean virtualThreadsSupported()
+   {
+      return VirtualThreads.supported();
+   }
+
+   /**
+    * @return an Executor that runs each task on a new daemon platform thread with the given name
+    */
+   static Executor platform(final String name)
+   {
+      return new Executor()
+         {
+            @Override
+            public void execute(Runnable task)
+            {
+               Thread thread = new Thread(task, name);
+               thread.setDaemon(true);
+               thread.start();
+            }
+         };
+   }
+
+   /**
+    * @return an Executor that runs each task on a new virtual thread with the given name,
+    * or on a platform thread if virtual threads are not supported
+    */
+   static Executor virtual(String name)
+   {
+      Executor executor = VirtualThreads.executor(name);
+      return executor != null ? executor : platform(name);
+   }
+}
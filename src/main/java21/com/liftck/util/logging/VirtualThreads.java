@@ -0,0 +1,34 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import java.util.concurrent.Executor;
+
+/**
+ * This is the Java 21 version packaged under META-INF/versions/21.  A writer spends most
+ * of its time blocked on JDBC or parked waiting for events, so many writers can share a
+ * few carrier threads.
+ */
+class VirtualThreads
+{
+   static boolean supported()
+   {
+      return true;
+   }
+
+   /**
+    * @return an Executor that runs each task on a new virtual thread with the given name
+    */
+   static Executor executor(final String name)
+   {
+      return new Executor()
+         {
+            @Override
+            public void execute(Runnable task)
+            {
+               Thread.ofVirtual().name(name).start(task);
+            }
+         };
+   }
+}
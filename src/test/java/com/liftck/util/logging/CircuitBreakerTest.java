@@ -0,0 +1,80 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest
+{
+   static void awaitProbe(CircuitBreaker breaker) throws InterruptedException
+   {
+      Thread.sleep(TimeUnit.NANOSECONDS.toMillis(breaker.remainingNanos()) + 1);
+   }
+
+   @Test
+   public void opensAfterThresholdConsecutiveFailures()
+   {
+      CircuitBreaker breaker = new CircuitBreaker(3, 60000);
+      assertFalse(breaker.failure());
+      assertFalse(breaker.failure());
+      assertFalse(breaker.success());
+
+      //the success reset the count
+      assertFalse(breaker.failure());
+      assertFalse(breaker.failure());
+      assertTrue(breaker.allowRequest());
+      assertFalse(breaker.isOpen());
+
+      assertTrue(breaker.failure());
+      assertTrue(breaker.isOpen());
+      assertFalse(breaker.allowRequest());
+      assertTrue(breaker.remainingNanos() > 0);
+   }
+
+   @Test
+   public void letsOneProbeThroughAndClosesOnItsSuccess() throws Exception
+   {
+      CircuitBreaker breaker = new CircuitBreaker(1, 20);
+      assertTrue(breaker.failure());
+      awaitProbe(breaker);
+
+      assertTrue(breaker.allowRequest());
+      assertEquals(CircuitBreaker.HALF_OPEN, breaker.state.get());
+      assertFalse(breaker.allowRequest());
+
+      assertTrue(breaker.success());
+      assertFalse(breaker.isOpen());
+      assertTrue(breaker.allowRequest());
+      assertFalse(breaker.success());
+   }
+
+   @Test
+   public void backsOffLongerEachTimeTheProbeFails() throws Exception
+   {
+      CircuitBreaker breaker = new CircuitBreaker(1, 10);
+      long openNanos = TimeUnit.MILLISECONDS.toNanos(10);
+      assertTrue(breaker.failure());
+
+      for (int i = 1; i <= 5; i++)
+      {
+         awaitProbe(breaker);
+         assertTrue(breaker.allowRequest());
+         assertTrue(breaker.failure());
+         assertEquals(CircuitBreaker.OPEN, breaker.state.get());
+         assertEquals(openNanos * Math.min(1 << i, CircuitBreaker.MAX_OPEN_MULTIPLIER), breaker.currentOpenNanos);
+      }
+
+      //closing resets the back off
+      awaitProbe(breaker);
+      assertTrue(breaker.allowRequest());
+      breaker.success();
+      assertEquals(openNanos, breaker.currentOpenNanos);
+   }
+}
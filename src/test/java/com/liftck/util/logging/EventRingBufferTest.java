@@ -0,0 +1,76 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class EventRingBufferTest
+{
+   @Test
+   public void refusesOffersWhenFull()
+   {
+      EventRingBuffer<Integer> ring = new EventRingBuffer<Integer>(4);
+      for (int i = 0; i < 4; i++)
+      {
+         assertTrue(ring.offer(i));
+      }
+      assertFalse(ring.offer(4));
+      assertEquals(4, ring.size());
+
+      assertEquals(Integer.valueOf(0), ring.poll());
+      assertTrue(ring.offer(4));
+      assertFalse(ring.offer(5));
+   }
+
+   @Test
+   public void keepsOrderAcrossWraparound()
+   {
+      EventRingBuffer<Integer> ring = new EventRingBuffer<Integer>(5);
+      int next = 0;
+      int expected = 0;
+      for (int round = 0; round < 100; round++)
+      {
+         //3 in and 3 out never lines up with the capacity so every slot is reused at every offset
+         for (int i = 0; i < 3; i++)
+         {
+            assertTrue(ring.offer(next++));
+         }
+         assertEquals(3, ring.size());
+         assertEquals(Integer.valueOf(expected), ring.peek());
+         for (int i = 0; i < 3; i++)
+         {
+            assertEquals(Integer.valueOf(expected++), ring.poll());
+         }
+         assertTrue(ring.isEmpty());
+      }
+      assertNull(ring.poll());
+      assertEquals(0, ring.size());
+   }
+
+   @Test
+   public void evictRemovesTheOldest()
+   {
+      EventRingBuffer<Integer> ring = new EventRingBuffer<Integer>(3);
+      for (int i = 0; i < 3; i++)
+      {
+         ring.offer(i);
+      }
+      assertEquals(Integer.valueOf(0), ring.evict(3));
+      assertTrue(ring.offer(3));
+      assertEquals(Integer.valueOf(1), ring.poll());
+      assertEquals(Integer.valueOf(2), ring.poll());
+      assertEquals(Integer.valueOf(3), ring.poll());
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void rejectsZeroCapacity()
+   {
+      new EventRingBuffer<Integer>(0);
+   }
+}
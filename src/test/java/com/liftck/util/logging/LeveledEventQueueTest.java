@@ -0,0 +1,57 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+
+public class LeveledEventQueueTest
+{
+   static DbLogRow row(long timeStamp, Level level, String message)
+   {
+      return new DbLogRow(timeStamp, level.toInt(), level.toString(), "c", "C", "m", 1, message, null);
+   }
+
+   @Test
+   public void pollsInTheOrderRowsWereOffered()
+   {
+      LeveledEventQueue queue = new LeveledEventQueue(16);
+      Level[] levels = {Level.INFO, Level.WARN, Level.INFO, Level.INFO, Level.ERROR, Level.WARN, Level.DEBUG, Level.INFO};
+      for (int i = 0; i < levels.length; i++)
+      {
+         //the same millisecond throughout, and the last row older than the rest
+         assertTrue(queue.offer(row(i < levels.length - 1 ? 1000 : 999, levels[i], "row " + i)));
+      }
+
+      for (int i = 0; i < levels.length; i++)
+      {
+         assertEquals("row " + i, queue.poll().message);
+      }
+      assertNull(queue.poll());
+      assertTrue(queue.isEmpty());
+   }
+
+   @Test
+   public void aHighRowEvictsTheOldestLowRow()
+   {
+      LeveledEventQueue queue = new LeveledEventQueue(2);
+      queue.offer(row(1000, Level.INFO, "info 0"));
+      queue.offer(row(1000, Level.INFO, "info 1"));
+      DbLogRow warn = row(1000, Level.WARN, "warn");
+      assertFalse(queue.offer(warn));
+
+      assertNull(queue.evict(row(1000, Level.INFO, "info 2")));
+      assertEquals("info 0", queue.evict(warn).message);
+      assertTrue(queue.offer(warn));
+
+      assertEquals("info 1", queue.poll().message);
+      assertEquals("warn", queue.poll().message);
+   }
+}
@@ -0,0 +1,152 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+
+public class LogbackBatchDbAppenderTest
+{
+   static final String    POISON       = "a.category.longer.than.the.column";
+   static final String    CREATE_TABLE = "CREATE TABLE ServerMessage (`id` BIGINT AUTO_INCREMENT PRIMARY KEY, `dayId` INT, `dayKey` INT, `service` VARCHAR(64), " //
+         + "`level` INT, `levelName` VARCHAR(16), `category` VARCHAR(20), `className` VARCHAR(255), `method` VARCHAR(255), `lineNumber` INT, " //
+         + "`messageKey` VARCHAR(100), `message` VARCHAR(255), `error` VARCHAR(10000), `buildVersion` VARCHAR(64), `machine` VARCHAR(255), " //
+         + "`machineIp` VARCHAR(64), `messageNum` INT, `timestamp` TIMESTAMP(3), `lastModified` BIGINT)";
+
+   JdbcDataSource         dataSource;
+   Connection             db;
+   LogbackBatchDbAppender appender;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      //every thrown away row is warned about with its stack trace
+      ((Logger) LoggerFactory.getLogger(LogbackBatchDbAppender.class.getName())).setLevel(Level.ERROR);
+
+      dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:bisect;MODE=MySQL;DB_CLOSE_DELAY=-1;DATABASE_TO_UPPER=false;NON_KEYWORDS=LEVEL");
+      db = dataSource.getConnection();
+      db.createStatement().execute(CREATE_TABLE);
+
+      appender = new LogbackBatchDbAppender();
+      appender.setContext(new LoggerContext());
+      appender.setDataSource(dataSource);
+      appender.setTableName("ServerMessage");
+      appender.setService("test");
+      appender.setJmxEnabled(false);
+      appender.start();
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      appender.stop();
+      db.createStatement().execute("DROP TABLE ServerMessage");
+      db.close();
+   }
+
+   static List<DbLogRow> rows(int count, int... poison)
+   {
+      List<DbLogRow> rows = new ArrayList<DbLogRow>();
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < count; i++)
+      {
+         rows.add(new DbLogRow(now, 20000, "INFO", "category", "C", "m", 1, "message " + i, ""));
+      }
+      for (int i : poison)
+      {
+         rows.set(i, new DbLogRow(now, 20000, "INFO", POISON, "C", "m", 1, "message " + i, ""));
+      }
+      return rows;
+   }
+
+   List<String> messages() throws SQLException
+   {
+      List<String> messages = new ArrayList<String>();
+      Statement statement = db.createStatement();
+      ResultSet rs = statement.executeQuery("SELECT message FROM ServerMessage ORDER BY id");
+      while (rs.next())
+      {
+         messages.add(rs.getString(1));
+      }
+      statement.close();
+      return messages;
+   }
+
+   CachedConnection connection()
+   {
+      return new CachedConnection(dataSource, appender.validationIntervalMs, appender.validationTimeoutSeconds, appender.maxCachedStatements());
+   }
+
+   @Test
+   public void bisectionThrowsAwayOnlyThePoisonRow() throws Exception
+   {
+      List<DbLogRow> rows = rows(100, 37);
+      appender.insertWithRetry(connection(), rows);
+
+      List<String> messages = messages();
+      assertEquals(99, messages.size());
+      for (int i = 0, m = 0; i < 100; i++)
+      {
+         if (i != 37)
+         {
+            assertEquals("message " + i, messages.get(m++));
+         }
+      }
+      assertEquals(1, appender.getMetrics().getPoisonRows());
+      assertEquals(0, appender.getMetrics().getRetries());
+   }
+
+   @Test
+   public void bisectionIsolatesEveryPoisonRow() throws Exception
+   {
+      appender.insertWithRetry(connection(), rows(64, 0, 31, 32, 63));
+
+      assertEquals(60, messages().size());
+      assertEquals(4, appender.getMetrics().getPoisonRows());
+   }
+
+   @Test
+   public void rejectsAnUnknownWriteStrategy()
+   {
+      LogbackBatchDbAppender misconfigured = new LogbackBatchDbAppender();
+      misconfigured.setContext(new LoggerContext());
+      misconfigured.setDataSource(dataSource);
+      misconfigured.setTableName("ServerMessage");
+      misconfigured.setService("test");
+      misconfigured.setJmxEnabled(false);
+      misconfigured.setWriteStrategy("multiRow");
+      try
+      {
+         misconfigured.start();
+         fail("started with writeStrategy multiRow");
+      }
+      catch (RuntimeException ex)
+      {
+         assertTrue(ex.getMessage(), ex.getMessage().contains("unknown writeStrategy multiRow"));
+      }
+      finally
+      {
+         misconfigured.stop();
+      }
+   }
+}
@@ -0,0 +1,86 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MessageKeysTest
+{
+   static final String[] DELIMITERS = {". ", "=", ": ", "-", "\n", "\t", "**"};
+
+   /**
+    * The key extraction MessageKeys replaced, one indexOf per delimiter.
+    */
+   static String indexOfKey(String message, int maxKeyLength)
+   {
+      if (message.length() >= maxKeyLength)
+      {
+         message = message.substring(0, maxKeyLength);
+      }
+
+      int endOfKeyIndex = message.length();
+      for (String delimiter : DELIMITERS)
+      {
+         int i = message.indexOf(delimiter);
+         if (endOfKeyIndex > i && i > MessageKeys.MIN_KEY_INDEX)
+         {
+            endOfKeyIndex = i;
+         }
+      }
+      return endOfKeyIndex > 0 ? message.substring(0, endOfKeyIndex) : message;
+   }
+
+   @Test
+   public void matchesTheIndexOfExtraction()
+   {
+      String[] messages = {"", "a", "abcd", "ab. cd", "abcde. fg", "a=b c=d", "Order 1234: failed", "key-value-pair", "x**y** z", "**abcdef** ", //
+            "line one\nline two", "tab\there", "ends with a period.", "ends with colon:", "a.b. c", "abcde*", "abcde**", "12345=-: . **"};
+      for (String message : messages)
+      {
+         assertEquals(message, indexOfKey(message, 100), MessageKeys.extract(message, 100));
+      }
+
+      //random messages made mostly of delimiter characters so they overlap and repeat
+      Random random = new Random(1);
+      char[] alphabet = {'a', 'b', ' ', '.', '=', ':', '-', '\n', '\t', '*'};
+      for (int n = 0; n < 100000; n++)
+      {
+         char[] chars = new char[random.nextInt(40)];
+         for (int i = 0; i < chars.length; i++)
+         {
+            chars[i] = alphabet[random.nextInt(alphabet.length)];
+         }
+         String message = new String(chars);
+         int maxKeyLength = 1 + random.nextInt(40);
+         assertEquals(message, indexOfKey(message, maxKeyLength), MessageKeys.extract(message, maxKeyLength));
+      }
+   }
+
+   @Test
+   public void startsOverOnceMaxSizeTemplatesAreCached()
+   {
+      MessageKeys keys = new MessageKeys(100, 2);
+      assertNull(keys.keyOf(null));
+      assertEquals("first template", keys.keyOf("first template: {}"));
+      assertEquals("second template", keys.keyOf("second template: {}"));
+      assertEquals(2, keys.cache.size());
+
+      assertEquals("third template", keys.keyOf("third template: {}"));
+      assertEquals(1, keys.cache.size());
+      assertEquals("third template", keys.cache.get("third template: {}"));
+   }
+
+   @Test
+   public void cachesNothingWhenMaxSizeIsZero()
+   {
+      MessageKeys keys = new MessageKeys(100, 0);
+      assertEquals("a template", keys.keyOf("a template: {}"));
+      assertEquals(0, keys.cache.size());
+   }
+}
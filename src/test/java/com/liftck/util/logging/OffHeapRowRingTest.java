@@ -0,0 +1,132 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class OffHeapRowRingTest
+{
+   /**
+    * @return a row whose record takes 59 + message.length() bytes when the message is ASCII
+    */
+   static DbLogRow row(long timeStamp, String message)
+   {
+      return new DbLogRow(timeStamp, 20000, "INFO", "c", "C", "m", 42, message, null, 3, timeStamp - 1);
+   }
+
+   static String ascii(int length)
+   {
+      StringBuilder buf = new StringBuilder(length);
+      for (int i = 0; i < length; i++)
+      {
+         buf.append((char) ('a' + i % 26));
+      }
+      return buf.toString();
+   }
+
+   static void assertRow(DbLogRow expected, DbLogRow actual)
+   {
+      assertEquals(expected.timeStamp, actual.timeStamp);
+      assertEquals(expected.level, actual.level);
+      assertEquals(expected.levelName, actual.levelName);
+      assertEquals(expected.category, actual.category);
+      assertEquals(expected.className, actual.className);
+      assertEquals(expected.method, actual.method);
+      assertEquals(expected.lineNumber, actual.lineNumber);
+      assertEquals(expected.message, actual.message);
+      assertEquals(expected.error, actual.error);
+      assertEquals(expected.occurrences, actual.occurrences);
+      assertEquals(expected.firstTimeStamp, actual.firstTimeStamp);
+   }
+
+   @Test
+   public void roundTripsRows()
+   {
+      OffHeapRowRing ring = new OffHeapRowRing(4096);
+      DbLogRow[] rows = {row(1, ""), row(2, null), row(3, "caf\u00e9 \u20ac \ud83d\ude00"), new DbLogRow(4, 40000, "ERROR", "cat", "Cls", "run", 7, "boom", "java.lang.Exception\n\tat x")};
+      for (DbLogRow row : rows)
+      {
+         assertTrue(ring.offer(row));
+      }
+      assertEquals(rows.length, ring.size());
+      for (DbLogRow row : rows)
+      {
+         assertRow(row, ring.poll());
+      }
+      assertNull(ring.poll());
+      assertTrue(ring.isEmpty());
+   }
+
+   @Test
+   public void unpairedSurrogatesBecomeReplacementCharacters()
+   {
+      OffHeapRowRing ring = new OffHeapRowRing(4096);
+      ring.offer(row(1, "a\ud83db"));
+      assertEquals("a\ufffdb", ring.poll().message);
+   }
+
+   @Test
+   public void padsARecordThatDoesNotFitBeforeTheEnd()
+   {
+      //8 blocks, each row takes 3 so the third would wrap
+      OffHeapRowRing ring = new OffHeapRowRing(8 * OffHeapRowRing.BLOCK_SIZE);
+      String message = ascii(100);
+      assertTrue(ring.offer(row(1, message)));
+      assertTrue(ring.offer(row(2, message)));
+      assertEquals(6, ring.tail.get());
+
+      //blocks 0 to 2 are still in use, the record needs them after padding blocks 6 and 7
+      assertFalse(ring.offer(row(3, message)));
+
+      assertRow(row(1, message), ring.poll());
+      assertTrue(ring.offer(row(3, message)));
+      assertEquals(6 + 2 + 3, ring.tail.get());
+      assertEquals(-2, ring.published.get(6));
+      assertEquals(3, ring.published.get(0));
+
+      assertRow(row(2, message), ring.poll());
+      assertRow(row(3, message), ring.poll());
+      assertNull(ring.poll());
+      assertEquals(11, ring.head);
+      assertEquals(0, ring.size());
+   }
+
+   @Test
+   public void keepsOrderAcrossWraparound()
+   {
+      OffHeapRowRing ring = new OffHeapRowRing(32 * OffHeapRowRing.BLOCK_SIZE);
+      long next = 0;
+      long expected = 0;
+      for (int round = 0; round < 500; round++)
+      {
+         //records of 1 to 6 blocks so the padding lands at every offset
+         int rows = 1 + round % 3;
+         for (int i = 0; i < rows; i++)
+         {
+            assertTrue(ring.offer(row(next, ascii((int) (next * 37 % 300)))));
+            next++;
+         }
+         for (int i = 0; i < rows; i++)
+         {
+            assertRow(row(expected, ascii((int) (expected * 37 % 300))), ring.poll());
+            expected++;
+         }
+         assertTrue(ring.isEmpty());
+      }
+   }
+
+   @Test
+   public void refusesARowLargerThanTheArena()
+   {
+      OffHeapRowRing ring = new OffHeapRowRing(4 * OffHeapRowRing.BLOCK_SIZE);
+      assertFalse(ring.offer(row(1, ascii(4 * OffHeapRowRing.BLOCK_SIZE))));
+      assertTrue(ring.isEmpty());
+      assertTrue(ring.offer(row(2, "fits")));
+   }
+}
@@ -0,0 +1,101 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.qos.logback.classic.LoggerContext;
+
+public class SpillLogReplayerTest
+{
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   Connection             db;
+   LogbackBatchDbAppender appender;
+
+   @Before
+   public void setUp() throws Exception
+   {
+      JdbcDataSource dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:replay;MODE=MySQL;DB_CLOSE_DELAY=-1;DATABASE_TO_UPPER=false;NON_KEYWORDS=LEVEL");
+      db = dataSource.getConnection();
+      db.createStatement().execute(LogbackBatchDbAppenderTest.CREATE_TABLE);
+
+      appender = new LogbackBatchDbAppender();
+      appender.setContext(new LoggerContext());
+      appender.setDataSource(dataSource);
+      appender.setTableName("ServerMessage");
+      appender.setService("test");
+      appender.setJmxEnabled(false);
+      appender.setSpillDirectory(folder.getRoot().getAbsolutePath());
+      appender.setSpillReplayIntervalMs(5);
+      appender.setCircuitBreakerThreshold(1);
+      appender.setCircuitBreakerOpenMs(20);
+      appender.start();
+   }
+
+   @After
+   public void tearDown() throws Exception
+   {
+      appender.stop();
+      db.createStatement().execute("DROP TABLE ServerMessage");
+      db.close();
+   }
+
+   long rowCount() throws Exception
+   {
+      ResultSet rs = db.createStatement().executeQuery("SELECT COUNT(*) FROM ServerMessage");
+      rs.next();
+      return rs.getLong(1);
+   }
+
+   @Test
+   public void anEmptySpillLogDoesNotTakeTheProbe() throws Exception
+   {
+      CircuitBreaker breaker = appender.circuitBreaker;
+      assertTrue(breaker.failure());
+
+      //long enough for the replayer to go round its loop many times after the probe is due
+      Thread.sleep(200);
+
+      assertEquals(CircuitBreaker.OPEN, breaker.state.get());
+      assertTrue(breaker.allowRequest());
+      assertTrue(breaker.success());
+   }
+
+   @Test
+   public void replaysSpilledRowsOnceTheProbeIsDue() throws Exception
+   {
+      CircuitBreaker breaker = appender.circuitBreaker;
+      assertTrue(breaker.failure());
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < 10; i++)
+      {
+         assertTrue(appender.spillLog.append(new DbLogRow(now, 20000, "INFO", "category", "C", "m", 1, "spilled " + i, "")));
+      }
+
+      long deadline = System.currentTimeMillis() + 5000;
+      while (rowCount() < 10 && System.currentTimeMillis() < deadline)
+      {
+         Thread.sleep(10);
+      }
+
+      assertEquals(10, rowCount());
+      assertFalse(breaker.isOpen());
+      assertFalse(appender.spillLog.hasPending());
+   }
+}
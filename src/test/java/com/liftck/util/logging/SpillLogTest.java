@@ -0,0 +1,146 @@
+/**
+ * 
+ */
+package com.liftck.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpillLogTest
+{
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   static DbLogRow row(long timeStamp)
+   {
+      return new DbLogRow(timeStamp, 20000, "INFO", "c", "C", "m", 1, "spilled message number " + timeStamp, null);
+   }
+
+   static List<Long> timeStamps(List<DbLogRow> rows)
+   {
+      List<Long> timeStamps = new ArrayList<Long>();
+      for (DbLogRow row : rows)
+      {
+         timeStamps.add(row.timeStamp);
+      }
+      return timeStamps;
+   }
+
+   static List<Long> range(long from, long to)
+   {
+      List<Long> values = new ArrayList<Long>();
+      for (long i = from; i < to; i++)
+      {
+         values.add(i);
+      }
+      return values;
+   }
+
+   @Test
+   public void rollbackReadsTheSameRowsAgain() throws Exception
+   {
+      SpillLog log = new SpillLog(folder.getRoot(), 64 * 1024, 1024 * 1024);
+      for (int i = 0; i < 5; i++)
+      {
+         assertTrue(log.append(row(i)));
+      }
+
+      List<DbLogRow> rows = new ArrayList<DbLogRow>();
+      assertEquals(3, log.read(rows, 3));
+      assertEquals(range(0, 3), timeStamps(rows));
+
+      log.rollback();
+      rows.clear();
+      assertEquals(5, log.read(rows, 10));
+      assertEquals(range(0, 5), timeStamps(rows));
+      assertEquals(0, log.replayed);
+      assertTrue(log.hasPending());
+   }
+
+   @Test
+   public void commitMakesReadsPermanent() throws Exception
+   {
+      SpillLog log = new SpillLog(folder.getRoot(), 64 * 1024, 1024 * 1024);
+      for (int i = 0; i < 5; i++)
+      {
+         log.append(row(i));
+      }
+
+      List<DbLogRow> rows = new ArrayList<DbLogRow>();
+      log.read(rows, 2);
+      log.commit();
+      assertEquals(2, log.replayed);
+
+      //read but not committed, so replayed again after a restart
+      rows.clear();
+      log.read(rows, 1);
+      log.rollback();
+      log.read(rows, 1);
+      log.close();
+
+      SpillLog reopened = new SpillLog(folder.getRoot(), 64 * 1024, 1024 * 1024);
+      rows.clear();
+      assertEquals(3, reopened.read(rows, 10));
+      assertEquals(range(2, 5), timeStamps(rows));
+      reopened.commit();
+      rows.clear();
+      assertEquals(0, reopened.read(rows, 10));
+   }
+
+   @Test
+   public void rollsSegmentsAndDeletesReplayedOnes() throws Exception
+   {
+      File directory = folder.getRoot();
+      SpillLog log = new SpillLog(directory, 256, 1024 * 1024);
+      for (int i = 0; i < 20; i++)
+      {
+         assertTrue(log.append(row(i)));
+      }
+      int segments = log.segments.size();
+      assertTrue(segments > 2);
+      assertEquals(segments, directory.list().length - 1);
+
+      List<DbLogRow> rows = new ArrayList<DbLogRow>();
+      assertEquals(20, log.read(rows, 100));
+      assertEquals(range(0, 20), timeStamps(rows));
+
+      log.commit();
+      assertEquals(1, log.segments.size());
+      assertEquals(2, directory.list().length);
+      assertFalse(log.hasPending());
+
+      //the write segment is still appended to after the commit
+      log.append(row(20));
+      rows.clear();
+      assertEquals(1, log.read(rows, 100));
+      assertEquals(20, rows.get(0).timeStamp);
+   }
+
+   @Test
+   public void refusesAppendsOnceTheDiskBudgetIsUsed() throws Exception
+   {
+      SpillLog log = new SpillLog(folder.getRoot(), 256, 512);
+      int appended = 0;
+      while (log.append(row(appended)))
+      {
+         appended++;
+      }
+      assertEquals(2, log.segments.size());
+      assertEquals(1, log.dropped);
+
+      //once the replayer catches up there is room again
+      List<DbLogRow> rows = new ArrayList<DbLogRow>();
+      assertEquals(appended, log.read(rows, 100));
+      log.commit();
+      assertTrue(log.append(row(appended)));
+   }
+}